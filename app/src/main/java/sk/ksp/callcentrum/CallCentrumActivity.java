@@ -37,10 +37,13 @@ import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import sk.ksp.callcentrum.dialpad.DialpadFragment;
+import sk.ksp.callcentrum.core.ServerDiscovery;
+import sk.ksp.callcentrum.sessions.WarmConnection;
 
 /**
  * The dialer tab's title is 'phone', a more common name (see strings.xml).
@@ -56,6 +59,9 @@ public class CallCentrumActivity extends Activity implements View.OnClickListene
 
     private static final int ACTIVITY_REQUEST_CODE_VOICE_SEARCH = 1;
 
+    // Discovered servers answering within this many ms of each other have an equal priority
+    private static final int RTT_TIE = 5;
+
     /**
      * Fragment containing the dialpad that slides into view
      */
@@ -102,7 +108,12 @@ public class CallCentrumActivity extends Activity implements View.OnClickListene
 
         getActionBar().hide();
 
-        if (DataStorage.getStorage().getServerAddress() == null) {
+        if (BuildConfig.serverDiscovery) {
+            // Once per launch, not again when the activity is recreated
+            if (savedInstanceState == null) {
+                discoverServer();
+            }
+        } else if (DataStorage.getStorage().getServerAddress() == null) {
             askForAddress();
         }
 
@@ -173,6 +184,51 @@ public class CallCentrumActivity extends Activity implements View.OnClickListene
         }
     }
 
+    /**
+     * Looks for the game servers on the local network and puts them, the fastest one first,
+     * ahead of the addresses of the flavor and the one entered by the user. If there is no
+     * server at all, the user is asked for one.
+     */
+    private void discoverServer() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<ServerDiscovery.Server> servers;
+                try {
+                    servers = ServerDiscovery.discover();
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Discovered servers: " + servers);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Server discovery failed: " + e.toString());
+                    servers = new ArrayList<ServerDiscovery.Server>();
+                }
+                final List<ServerDiscovery.Server> found = servers;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        DataStorage storage = DataStorage.getStorage();
+                        if (!found.isEmpty()) {
+                            // Ranked by RTT, the phones of a team pick one of a tier by affinity
+                            List<List<String>> tiers = new ArrayList<List<String>>();
+                            int tierRtt = 0;
+                            for (ServerDiscovery.Server server : found) {
+                                if (tiers.isEmpty() || server.rtt > tierRtt + RTT_TIE) {
+                                    tiers.add(new ArrayList<String>());
+                                    tierRtt = server.rtt;
+                                }
+                                tiers.get(tiers.size() - 1).add(server.address.getHostAddress() + ":" + server.port);
+                            }
+                            storage.addServersFirst(tiers);
+                        } else if (storage.getServerAddress() == null && !isFinishing()) {
+                            askForAddress();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
     public void askForAddress() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         LayoutInflater inflater = getLayoutInflater();
@@ -274,6 +330,7 @@ public class CallCentrumActivity extends Activity implements View.OnClickListene
         mDialpadButton.setVisibility(View.GONE);
 
         setDialButtonEnabled(true);
+        WarmConnection.warm();
     }
 
     public void hideDialpadFragment(boolean animate, boolean clearDialpad) {
@@ -4,6 +4,8 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.os.Handler;
 
+import sk.ksp.callcentrum.core.CallTimer;
+
 public abstract class CallSessionManager {
 
     public static final int MESSAGE_SHOW_IMAGE = 0;
@@ -31,6 +33,18 @@ public abstract class CallSessionManager {
         this.context = context;
     }
 
+    /**
+     * Returns a timer showing the time of the call, started by the session when it connects.
+     */
+    protected CallTimer createCallTimer() {
+        return new CallTimer(new CallTimer.Listener() {
+            @Override
+            public void onTick(String time) {
+                uiHandler.obtainMessage(MESSAGE_UPDATE_TIME, time).sendToTarget();
+            }
+        });
+    }
+
     public abstract void onButtonClick(int button);
     public abstract void onDialerClick(char dialerButton);
     public abstract void onPhoneShake();
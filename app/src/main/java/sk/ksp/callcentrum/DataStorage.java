@@ -1,11 +1,18 @@
 package sk.ksp.callcentrum;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class DataStorage {
 
     private DataStorage() {
         if (BuildConfig.serverAddress != null) {
-            serverAddress = BuildConfig.serverAddress.split(":")[0];
-            serverPort = BuildConfig.serverAddress.split(":")[1];
+            setServers(Arrays.asList(BuildConfig.serverAddress.split(",")));
         }
     }
 
@@ -18,20 +25,91 @@ public class DataStorage {
 
     private String serverAddress;
     private String serverPort;
+    // host:port of the servers after the first one
+    private List<String> otherServers = new ArrayList<String>();
+    // Tier of the servers added together with an equal priority, next to each other in the list
+    private final Map<String, Integer> tiers = new HashMap<String, Integer>();
+    private int nextTier;
 
-    public String getServerAddress() {
+    public synchronized String getServerAddress() {
         return serverAddress;
     }
 
-    public void setServerAddress(String serverAddress) {
+    public synchronized void setServerAddress(String serverAddress) {
         this.serverAddress = serverAddress;
     }
 
-    public String getServerPort() {
+    public synchronized String getServerPort() {
         return serverPort;
     }
 
-    public void setServerPort(String serverPort) {
+    public synchronized void setServerPort(String serverPort) {
         this.serverPort = serverPort;
     }
+
+    /**
+     * Returns host:port of every known server, the first one is the server address.
+     */
+    public synchronized List<String> getServers() {
+        List<String> servers = new ArrayList<String>();
+        if (serverAddress != null) {
+            servers.add(serverAddress + ":" + serverPort);
+        }
+        servers.addAll(otherServers);
+        return servers;
+    }
+
+    public synchronized void setServers(List<String> servers) {
+        otherServers = new ArrayList<String>();
+        serverAddress = null;
+        serverPort = null;
+        for (String server : servers) {
+            server = server.trim();
+            if (server.isEmpty()) {
+                continue;
+            }
+            if (serverAddress == null) {
+                serverAddress = server.substring(0, server.lastIndexOf(':'));
+                serverPort = server.substring(server.lastIndexOf(':') + 1);
+            } else {
+                otherServers.add(server);
+            }
+        }
+    }
+
+    /**
+     * Returns the servers of getServers() in their order, grouped into tiers of servers with
+     * an equal priority. A server not added in a tier is a tier of its own.
+     */
+    public synchronized List<List<String>> getServerTiers() {
+        List<List<String>> ordered = new ArrayList<List<String>>();
+        Integer last = null;
+        for (String server : getServers()) {
+            Integer tier = tiers.get(server);
+            if (tier == null || !tier.equals(last)) {
+                ordered.add(new ArrayList<String>());
+            }
+            ordered.get(ordered.size() - 1).add(server);
+            last = tier;
+        }
+        return ordered;
+    }
+
+    /**
+     * Puts the tiers of servers, in their order, ahead of the known ones, which stay as the
+     * fallback. The servers of a tier have an equal priority.
+     */
+    public synchronized void addServersFirst(List<List<String>> servers) {
+        Set<String> merged = new LinkedHashSet<String>();
+        for (List<String> tier : servers) {
+            int id = nextTier++;
+            for (String server : tier) {
+                if (merged.add(server)) {
+                    tiers.put(server, id);
+                }
+            }
+        }
+        merged.addAll(getServers());
+        setServers(new ArrayList<String>(merged));
+    }
 }
@@ -44,6 +44,7 @@ import java.util.HashSet;
 import sk.ksp.callcentrum.NeededForReflection;
 import sk.ksp.callcentrum.R;
 import sk.ksp.callcentrum.common.HapticFeedback;
+import sk.ksp.callcentrum.sessions.WarmConnection;
 
 /**
  * Fragment that displays a twelve-key phone dialpad.
@@ -405,6 +406,8 @@ public class DialpadFragment extends Fragment
         }
 
         mHaptic.vibrate();
+        // The call is likely coming, connect to the server meanwhile
+        WarmConnection.warm();
         KeyEvent event = new KeyEvent(KeyEvent.ACTION_DOWN, keyCode);
         mDigits.onKeyDown(keyCode, event);
 
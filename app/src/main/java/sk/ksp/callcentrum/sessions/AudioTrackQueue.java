@@ -0,0 +1,403 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import sk.ksp.callcentrum.BuildConfig;
+
+/**
+ * Plays sentences by streaming the decoded words back to back into a single AudioTrack.
+ *
+ * The clips come from the mapped PcmBank, until it is built every clip is decoded to PCM once
+ * and kept in a bounded cache. The words of a sentence are handed over to a writer thread,
+ * which owns the AudioTrack, so the joins between words are sample accurate and the whole call
+ * uses one audio session. The writer has its own thread, because blocking writes into the
+ * track must not hold up the mailbox of the audio thread. An interruption drops what is
+ * buffered in the track and writes the cut word again later.
+ */
+class AudioTrackQueue extends MediaQueue {
+
+    private static final int CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 4096;
+    private static final int DRAIN_POLL_MS = 10;
+
+    private static class Segment extends Item {
+        // null for shutdown
+        final PcmClip clip;
+
+        Segment(Item item, PcmClip clip) {
+            super(item.sound, item.index, item.priority);
+            this.clip = clip;
+        }
+    }
+
+    private final LinkedHashMap<String, PcmClip> cache;
+    private int cacheBytes;
+
+    // Words waiting for the writer and the one it is writing, guarded by pending
+    private final LinkedList<Segment> pending;
+    private Segment writing;
+    // Bumped when the buffered audio has to be dropped, the writer flushes the track
+    private volatile int generation;
+    private volatile boolean running = true;
+    private final Thread writer;
+    // Only touched by the writer
+    private final byte[] scratch = new byte[CHUNK_BYTES];
+    private volatile boolean lowWaterSent;
+
+    public AudioTrackQueue(MediaQueueCallback callback, Context context) {
+        super(callback, context);
+        cache = new LinkedHashMap<String, PcmClip>(64, 0.75f, true);
+        // Starts building the bank on the first call after an install
+        PcmBank.get(context);
+        pending = new LinkedList<Segment>();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AudioTrackQueue");
+        writer.start();
+    }
+
+    @Override
+    protected void onEnqueue(Item[] items, int mode) {
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (Item item : items) {
+            if (SHUTDOWN.equals(item.sound)) {
+                segments.add(new Segment(item, null));
+            } else {
+                PcmClip clip = getClip(item.sound);
+                if (clip != null) {
+                    segments.add(new Segment(item, clip));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            lowWaterSent = false;
+            if (insert(pending, segments, mode, writing)) {
+                // Cut the word being written, it is written again after the interruption
+                generation++;
+                writing = null;
+            }
+            pending.notify();
+        }
+    }
+
+    @Override
+    protected void onPreload(String[] sounds) {
+        for (String sound : sounds) {
+            if (!SHUTDOWN.equals(sound)) {
+                getClip(sound);
+            }
+        }
+    }
+
+    @Override
+    protected void onClear() {
+        synchronized (pending) {
+            generation++;
+            pending.clear();
+            writing = null;
+            lowWaterSent = false;
+            pending.notify();
+        }
+    }
+
+    @Override
+    protected void onRelease() {
+        running = false;
+        onClear();
+        writer.interrupt();
+        cache.clear();
+        cacheBytes = 0;
+    }
+
+    private PcmClip getClip(String sound) {
+        PcmBank bank = PcmBank.get(context);
+        PcmClip clip = bank != null ? bank.find(sound) : null;
+        if (clip != null) {
+            return clip;
+        }
+        clip = cache.get(sound);
+        if (clip != null) {
+            return clip;
+        }
+        int index = findSound(sound);
+        if (index < 0) {
+            return null;
+        }
+        try {
+            clip = PcmDecoder.decode(bundle.getFileDescriptor(), bundle.getOffset(index), bundle.getLength(index));
+        } catch (IOException e) {
+            Log.wtf("MediaQueue", "IOException: " + e.toString());
+            e.printStackTrace();
+            return null;
+        }
+        cache.put(sound, clip);
+        cacheBytes += clip.data.limit();
+        Iterator<Map.Entry<String, PcmClip>> it = cache.entrySet().iterator();
+        while (cacheBytes > CACHE_BYTES && cache.size() > 1) {
+            cacheBytes -= it.next().getValue().data.limit();
+            it.remove();
+        }
+        return clip;
+    }
+
+    private static int getChannelConfig(PcmClip clip) {
+        return clip.channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+    }
+
+    private static int getMinBufferSize(PcmClip clip) {
+        return AudioTrack.getMinBufferSize(clip.sampleRate, getChannelConfig(clip), AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    private AudioTrack createTrack(PcmClip clip) {
+        return new AudioTrack(AudioManager.STREAM_MUSIC, clip.sampleRate, getChannelConfig(clip),
+                AudioFormat.ENCODING_PCM_16BIT, 2 * getMinBufferSize(clip), AudioTrack.MODE_STREAM);
+    }
+
+    private void writeLoop() {
+        AudioTrack track = null;
+        PcmClip format = null;
+        ByteBuffer silence = null;
+        // Frames written since the last flush and the head position right after it
+        int framesWritten = 0;
+        int headBase = 0;
+        int trackGeneration = generation;
+        // Everything written was heard and reported
+        boolean idle = true;
+
+        try {
+            while (running) {
+                Segment segment;
+                int gen;
+                int afterMillis;
+                synchronized (pending) {
+                    writing = null;
+                    if (pending.isEmpty() && idle) {
+                        try {
+                            pending.wait();
+                        } catch (InterruptedException e) {
+                        }
+                        continue;
+                    }
+                    // null when the queue ran dry
+                    segment = pending.pollFirst();
+                    writing = segment;
+                    gen = generation;
+                    afterMillis = getQueuedMillis();
+                }
+                if (gen != trackGeneration) {
+                    if (track != null) {
+                        // Cleared or interrupted, drop whatever is still buffered
+                        track.pause();
+                        track.flush();
+                        framesWritten = 0;
+                        headBase = track.getPlaybackHeadPosition();
+                    }
+                    trackGeneration = gen;
+                }
+
+                if (segment == null || segment.clip == null) {
+                    boolean shutdown = segment != null;
+                    if (track != null && framesWritten > 0 && !idle) {
+                        // Push the tail out of the buffer, then wait until it is heard
+                        int frames = framesWritten;
+                        framesWritten += write(track, silence, gen) / format.getFrameSize();
+                        if (!drain(track, format, headBase, frames, gen, 0, !shutdown) && !shutdown) {
+                            continue;
+                        }
+                        if (!shutdown) {
+                            postEmpty(gen);
+                        }
+                    }
+                    idle = true;
+                    if (shutdown) {
+                        postShutdown(gen);
+                    }
+                    continue;
+                }
+
+                PcmClip clip = segment.clip;
+                if (!clip.hasSameFormat(format)) {
+                    if (track != null) {
+                        int frames = framesWritten;
+                        framesWritten += write(track, silence, gen) / format.getFrameSize();
+                        if (!drain(track, format, headBase, frames, gen,
+                                clip.getDurationMillis() + afterMillis, false)) {
+                            continue;
+                        }
+                        track.release();
+                    }
+                    track = createTrack(clip);
+                    format = clip;
+                    silence = ByteBuffer.wrap(new byte[getMinBufferSize(clip)]);
+                    framesWritten = 0;
+                    headBase = 0;
+                }
+                if (track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                    track.play();
+                }
+                idle = false;
+                if (BuildConfig.DEBUG) {
+                    Log.d("MediaQueue", "Playback started: " + segment.sound);
+                }
+                postPlaying(gen, segment.index);
+                int buffered = Math.max(0, framesWritten - (track.getPlaybackHeadPosition() - headBase));
+                checkLowWater(gen, (int) ((long) buffered * 1000 / clip.sampleRate)
+                        + clip.getDurationMillis() + afterMillis);
+                framesWritten += write(track, clip.data, gen) / clip.getFrameSize();
+            }
+        } finally {
+            if (track != null) {
+                track.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the queued words up to a shutdown, the caller holds the lock.
+     */
+    private int getQueuedMillis() {
+        int millis = 0;
+        for (Segment segment : pending) {
+            if (segment.clip == null) {
+                break;
+            }
+            millis += segment.clip.getDurationMillis();
+        }
+        return millis;
+    }
+
+    /**
+     * Writes the data in small chunks, so a clear() gets noticed quickly. Returns the number of
+     * bytes written. Before Lollipop a track only takes arrays, mapped clips are copied through
+     * a small scratch buffer then.
+     */
+    private int write(AudioTrack track, ByteBuffer data, int gen) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.rewind();
+        while (buffer.hasRemaining() && gen == generation) {
+            int size = Math.min(CHUNK_BYTES, buffer.remaining());
+            int written;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                buffer.limit(buffer.position() + size);
+                written = track.write(buffer, size, AudioTrack.WRITE_BLOCKING);
+                buffer.limit(data.limit());
+            } else {
+                int position = buffer.position();
+                buffer.get(scratch, 0, size);
+                written = track.write(scratch, 0, size);
+                if (written >= 0) {
+                    buffer.position(position + written);
+                }
+            }
+            if (written < 0) {
+                Log.e("MediaQueue", "AudioTrack write failed: " + written);
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Waits until the frames written to the track are heard, returns false if it stopped
+     * earlier. afterMillis is the length of what follows, for the low water mark. With
+     * yieldToData the wait also ends as soon as more words are queued.
+     */
+    private boolean drain(AudioTrack track, PcmClip format, int headBase, int frames, int gen,
+                          int afterMillis, boolean yieldToData) {
+        int played;
+        while ((played = track.getPlaybackHeadPosition() - headBase) < frames) {
+            if (gen != generation || !running) {
+                return false;
+            }
+            if (yieldToData) {
+                synchronized (pending) {
+                    if (!pending.isEmpty()) {
+                        return false;
+                    }
+                }
+            }
+            checkLowWater(gen, (int) ((long) (frames - played) * 1000 / format.sampleRate) + afterMillis);
+            SystemClock.sleep(DRAIN_POLL_MS);
+        }
+        return gen == generation;
+    }
+
+    private void checkLowWater(int gen, int remainingMillis) {
+        if (lowWaterMillis > 0 && !lowWaterSent && remainingMillis <= lowWaterMillis) {
+            lowWaterSent = true;
+            postLowWater(gen, remainingMillis);
+        }
+    }
+
+    /**
+     * The callbacks run on the audio thread like those of MediaPlayerQueue, the writer only
+     * posts them. The generation does not change under them there, the callbacks of words
+     * cleared in the meantime are dropped.
+     */
+    private void postEmpty(final int gen) {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (gen == generation) {
+                    callback.mediaQueueEmpty();
+                }
+            }
+        });
+    }
+
+    private void postShutdown(final int gen) {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (gen == generation) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d("MediaQueue", "Shutdown. Killing...");
+                    }
+                    callback.mediaQueueShutdown();
+                }
+            }
+        });
+    }
+
+    private void postPlaying(final int gen, final int index) {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (gen == generation) {
+                    callback.mediaQueuePlaying(index);
+                }
+            }
+        });
+    }
+
+    private void postLowWater(final int gen, final int remainingMillis) {
+        audioHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (gen == generation) {
+                    callback.mediaQueueLowWater(remainingMillis);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,236 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import sk.ksp.callcentrum.BuildConfig;
+import sk.ksp.callcentrum.core.ChannelTransport;
+import sk.ksp.callcentrum.core.CommandTokenizer;
+
+/**
+ * Connects to several servers at once and keeps the first one that answers the handshake.
+ *
+ * The attempts start one after another, a new one when the previous one failed or did not
+ * finish within STAGGER, so a healthy first server is used without loading the others. The
+ * servers are tried in the order of affinityOrder(): in the order of DataStorage, and among
+ * the servers of a tier so that the phones of a team end up on the same one as long as it is
+ * up.
+ */
+class ConnectionRace {
+
+    private static final int STAGGER = 300;
+    private static final int TIMEOUT = 15000;
+
+    private final List<String> endpoints;
+    private final String handshake;
+    private final boolean warm;
+
+    private final Object lock = new Object();
+    private final List<ChannelTransport> attempts = new ArrayList<ChannelTransport>();
+    private ChannelTransport winner;
+    // Set once run() returned, later attempts close their connections
+    private boolean finished;
+    private String startLine;
+    private int failed;
+    private IOException error;
+
+    /**
+     * Races the endpoints (host:port) with the handshake line. With warm the first attempt
+     * takes the WarmConnection to the first endpoint, waiting for it if it is still being
+     * opened while the other endpoints start after STAGGER. If there is none or it fails the
+     * endpoint is connected again.
+     */
+    public ConnectionRace(List<String> endpoints, String handshake, boolean warm) {
+        this.endpoints = endpoints;
+        this.handshake = handshake;
+        this.warm = warm;
+    }
+
+    /**
+     * Returns the endpoints of the tiers in the order of the tiers. Within a tier they are
+     * ordered by rendezvous hashing of the key, which keeps the order of the remaining
+     * endpoints when one of them goes away.
+     */
+    public static List<String> affinityOrder(List<List<String>> tiers, final String key) {
+        Comparator<String> byWeight = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long ha = weight(key, a);
+                long hb = weight(key, b);
+                return ha < hb ? 1 : ha > hb ? -1 : a.compareTo(b);
+            }
+        };
+        List<String> ordered = new ArrayList<String>();
+        for (List<String> tier : tiers) {
+            List<String> sorted = new ArrayList<String>(tier);
+            Collections.sort(sorted, byWeight);
+            ordered.addAll(sorted);
+        }
+        return ordered;
+    }
+
+    // 64 bit FNV-1a of key and endpoint
+    private static long weight(String key, String endpoint) {
+        String s = key + "\u0000" + endpoint;
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Returns the connection that answered the handshake first. The line it answered with is
+     * in getStartLine(). Throws the error of the last attempt if all of them failed.
+     */
+    public ChannelTransport run() throws IOException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        long lastStart = 0;
+        int started = 0;
+        synchronized (lock) {
+            while (winner == null) {
+                long now = SystemClock.uptimeMillis();
+                if (started < endpoints.size() && (started == failed || now >= lastStart + STAGGER)) {
+                    start(endpoints.get(started++));
+                    lastStart = now;
+                    continue;
+                }
+                if (failed == endpoints.size()) {
+                    finished = true;
+                    throw error != null ? error : new IOException("No server");
+                }
+                if (now >= deadline) {
+                    finished = true;
+                    closeAttempts(null);
+                    throw new SocketTimeoutException("No server answered");
+                }
+                long wait = deadline - now;
+                if (started < endpoints.size()) {
+                    wait = Math.min(wait, lastStart + STAGGER - now);
+                }
+                try {
+                    lock.wait(Math.max(wait, 1));
+                } catch (InterruptedException e) {
+                    finished = true;
+                    closeAttempts(null);
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            finished = true;
+            closeAttempts(winner);
+            return winner;
+        }
+    }
+
+    // The caller holds the lock
+    private void closeAttempts(ChannelTransport keep) {
+        for (ChannelTransport attempt : attempts) {
+            if (attempt != keep) {
+                attempt.close();
+            }
+        }
+    }
+
+    public String getStartLine() {
+        return startLine;
+    }
+
+    private void start(final String endpoint) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ChannelTransport warmTransport = warm && endpoint.equals(endpoints.get(0))
+                        ? WarmConnection.take(endpoint) : null;
+                if (warmTransport != null) {
+                    try {
+                        handshake(endpoint, warmTransport);
+                        return;
+                    } catch (IOException e) {
+                        // Went stale while the user was dialing, connect again
+                        warmTransport.close();
+                        if (BuildConfig.DEBUG) {
+                            Log.d("ConnectionRace", "Warm connection failed: " + e.toString());
+                        }
+                    }
+                }
+                synchronized (lock) {
+                    if (finished) {
+                        return;
+                    }
+                }
+                ChannelTransport transport = null;
+                try {
+                    int colon = endpoint.lastIndexOf(':');
+                    transport = new ChannelTransport(new InetSocketAddress(
+                            InetAddress.getByName(endpoint.substring(0, colon)),
+                            Integer.decode(endpoint.substring(colon + 1))));
+                    handshake(endpoint, transport);
+                } catch (IOException e) {
+                    fail(endpoint, transport, e);
+                } catch (NumberFormatException e) {
+                    fail(endpoint, transport, new IOException("Bad server " + endpoint));
+                } catch (IndexOutOfBoundsException e) {
+                    fail(endpoint, transport, new IOException("Bad server " + endpoint));
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Sends the handshake and waits for the start line, the first connection to get it wins.
+     */
+    private void handshake(String endpoint, ChannelTransport transport) throws IOException {
+        synchronized (lock) {
+            if (finished) {
+                transport.close();
+                return;
+            }
+            attempts.add(transport);
+        }
+        transport.send((handshake + "\n").getBytes("UTF-8"));
+        CommandTokenizer line = new CommandTokenizer();
+        while (line.readLine(transport.getInputStream())) {
+            if (line.nextToken() && line.tokenEquals("start")) {
+                synchronized (lock) {
+                    if (!finished && winner == null) {
+                        winner = transport;
+                        startLine = line.line();
+                        if (BuildConfig.DEBUG) {
+                            Log.d("ConnectionRace", "Won by " + endpoint);
+                        }
+                        lock.notifyAll();
+                    } else {
+                        transport.close();
+                    }
+                }
+                return;
+            }
+        }
+        throw new IOException(endpoint + " closed the connection");
+    }
+
+    private void fail(String endpoint, ChannelTransport transport, IOException e) {
+        if (transport != null) {
+            transport.close();
+        }
+        synchronized (lock) {
+            if (!finished) {
+                Log.w("ConnectionRace", endpoint + ": " + e.toString());
+            }
+            failed++;
+            error = e;
+            lock.notifyAll();
+        }
+    }
+}
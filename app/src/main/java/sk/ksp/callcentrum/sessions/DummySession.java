@@ -6,6 +6,7 @@ import android.util.Log;
 
 import sk.ksp.callcentrum.CallSessionManager;
 import sk.ksp.callcentrum.R;
+import sk.ksp.callcentrum.core.CallTimer;
 
 public class DummySession extends CallSessionManager {
 
@@ -14,34 +15,11 @@ public class DummySession extends CallSessionManager {
     // UI status
     private boolean dialerOpen = false;
 
-    private class TimerUpdateRunnable implements Runnable {
-
-        private boolean stop = false;
-        private int seconds = 0;
-
-        @Override
-        public void run() {
-            while (!stop) {
-                try {
-                    Thread.sleep(1000);
-                    uiHandler.obtainMessage(MESSAGE_UPDATE_TIME, String.format("%02d:%02d", seconds / 60, seconds % 60)).sendToTarget();
-                    seconds++;
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        public void stopTimer() {
-            stop = true;
-        }
-    }
-
-    private TimerUpdateRunnable timerUpdateRunnable;
+    private CallTimer callTimer;
 
     public DummySession(final Handler uiHandler, Context resources) {
         super(uiHandler, resources);
-        timerUpdateRunnable = new TimerUpdateRunnable();
+        callTimer = createCallTimer();
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -54,7 +32,7 @@ public class DummySession extends CallSessionManager {
                     uiHandler.obtainMessage(MESSAGE_HIDE_PROVIDER_INFO).sendToTarget();
                     Thread.sleep(1500);
                     uiHandler.obtainMessage(MESSAGE_HIDE_MESSAGEBAR).sendToTarget();
-                    new Thread(timerUpdateRunnable).start();
+                    new Thread(callTimer).start();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -76,7 +54,7 @@ public class DummySession extends CallSessionManager {
                     public void run() {
                         try {
                             uiHandler.obtainMessage(MESSAGE_SHOW_MESSAGEBAR, "Hanging up").sendToTarget();
-                            timerUpdateRunnable.stopTimer();
+                            callTimer.stopTimer();
                             Thread.sleep(2000);
                             uiHandler.obtainMessage(MESSAGE_SHOW_MESSAGEBAR, "Call ended").sendToTarget();
                             Thread.sleep(750);
@@ -0,0 +1,59 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import sk.ksp.callcentrum.core.PlayQueue;
+
+/**
+ * Runs the messages of a PlayQueue on a HandlerThread of its own, which quits after the
+ * queue is released.
+ */
+class HandlerExecutor implements PlayQueue.Executor, Handler.Callback {
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private PlayQueue queue;
+
+    public HandlerExecutor(String name) {
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * Sets the queue the messages are for, before anything is posted.
+     */
+    public void setQueue(PlayQueue queue) {
+        this.queue = queue;
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void post(int what, int arg1, int arg2, Object obj) {
+        handler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+    }
+
+    @Override
+    public void remove(int what) {
+        handler.removeMessages(what);
+    }
+
+    @Override
+    public void removeAll() {
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public boolean handleMessage(Message message) {
+        queue.dispatch(message.what, message.arg1, message.arg2, message.obj);
+        if (message.what == PlayQueue.MESSAGE_RELEASE) {
+            thread.quit();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded pool of prepared MediaPlayers keyed by sound name.
+ *
+ * Players survive between sentences, so a word that comes up again is only rewound instead of
+ * being opened and prepared from scratch. When the pool grows over its capacity the least
+ * recently used players are released, except those pinned by words that are queued or playing.
+ * New players are prepared asynchronously, the listener is told when they are ready.
+ * The pool is not thread safe, it is only used from the audio thread of MediaQueue.
+ */
+class MediaPlayerPool implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+
+    interface Listener extends MediaPlayer.OnCompletionListener {
+        public void onPlayerPrepared(MediaPlayer mp);
+        public void onPlayerError(MediaPlayer mp);
+    }
+
+    private final Context context;
+    private final int capacity;
+    private final Listener listener;
+    private final LinkedHashMap<String, MediaPlayer> players;
+    // Number of queued words using each pinned sound
+    private final HashMap<String, Integer> pinned;
+    private final Set<MediaPlayer> preparing;
+
+    private int hits;
+    private int misses;
+
+    public MediaPlayerPool(Context context, int capacity, Listener listener) {
+        this.context = context;
+        this.capacity = capacity;
+        this.listener = listener;
+        // access order, so iteration starts at the least recently used player
+        players = new LinkedHashMap<String, MediaPlayer>(capacity, 0.75f, true);
+        pinned = new HashMap<String, Integer>();
+        preparing = new HashSet<MediaPlayer>();
+    }
+
+    /**
+     * Returns a player for the sound, which may still be preparing, or null if it could not be
+     * created. The player stays pinned until {@link #unpin(String)} or {@link #recycle()}.
+     */
+    public MediaPlayer acquire(String sound, int clip) {
+        MediaPlayer mediaPlayer = obtain(sound, clip);
+        if (mediaPlayer != null) {
+            Integer count = pinned.get(sound);
+            pinned.put(sound, count == null ? 1 : count + 1);
+        }
+        trim();
+        return mediaPlayer;
+    }
+
+    public void unpin(String sound) {
+        Integer count = pinned.get(sound);
+        if (count == null || count <= 1) {
+            pinned.remove(sound);
+        } else {
+            pinned.put(sound, count - 1);
+        }
+        trim();
+    }
+
+    /**
+     * Starts preparing a player for the sound without pinning it, so it is ready when a later
+     * sentence asks for it.
+     */
+    public void warm(String sound, int clip) {
+        obtain(sound, clip);
+        trim();
+    }
+
+    public MediaPlayer get(String sound) {
+        return players.get(sound);
+    }
+
+    public boolean isPrepared(MediaPlayer mediaPlayer) {
+        return !preparing.contains(mediaPlayer);
+    }
+
+    /**
+     * Stops all players and makes them available for eviction again. The players are kept
+     * prepared, so they can be reused by the next sentence.
+     */
+    public void recycle() {
+        for (MediaPlayer mp : players.values()) {
+            if (preparing.contains(mp)) {
+                continue;
+            }
+            try {
+                if (mp.isPlaying()) {
+                    mp.pause();
+                }
+                mp.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+            }
+        }
+        pinned.clear();
+        trim();
+    }
+
+    public void release() {
+        for (MediaPlayer mp : players.values()) {
+            try {
+                if (!preparing.contains(mp) && mp.isPlaying()) {
+                    mp.stop();
+                }
+                mp.release();
+            } catch (IllegalStateException e) {
+            }
+        }
+        players.clear();
+        pinned.clear();
+        preparing.clear();
+    }
+
+    public int getHitCount() {
+        return hits;
+    }
+
+    public int getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mediaPlayer) {
+        if (preparing.remove(mediaPlayer)) {
+            listener.onPlayerPrepared(mediaPlayer);
+        }
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+        Log.e("MediaPlayerPool", "MediaPlayer error " + what + ", " + extra);
+        Iterator<MediaPlayer> it = players.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == mediaPlayer) {
+                it.remove();
+            }
+        }
+        preparing.remove(mediaPlayer);
+        mediaPlayer.release();
+        listener.onPlayerError(mediaPlayer);
+        return true;
+    }
+
+    private MediaPlayer obtain(String sound, int clip) {
+        MediaPlayer mediaPlayer = players.get(sound);
+        if (mediaPlayer != null) {
+            hits++;
+            return mediaPlayer;
+        }
+        misses++;
+        try {
+            VoiceBundle bundle = VoiceBundle.get(context);
+            mediaPlayer = new MediaPlayer();
+            mediaPlayer.setDataSource(bundle.getFileDescriptor(), bundle.getOffset(clip), bundle.getLength(clip));
+        } catch (IOException e) {
+            Log.wtf("MediaPlayerPool", "IOException: " + e.toString());
+            e.printStackTrace();
+            if (mediaPlayer != null) {
+                mediaPlayer.release();
+            }
+            return null;
+        }
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnCompletionListener(listener);
+        preparing.add(mediaPlayer);
+        players.put(sound, mediaPlayer);
+        mediaPlayer.prepareAsync();
+        return mediaPlayer;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, MediaPlayer>> it = players.entrySet().iterator();
+        while (players.size() > capacity && it.hasNext()) {
+            Map.Entry<String, MediaPlayer> entry = it.next();
+            if (!pinned.containsKey(entry.getKey())) {
+                preparing.remove(entry.getValue());
+                entry.getValue().release();
+                it.remove();
+            }
+        }
+    }
+}
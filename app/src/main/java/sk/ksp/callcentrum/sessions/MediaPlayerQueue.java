@@ -0,0 +1,370 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import sk.ksp.callcentrum.BuildConfig;
+
+class MediaPlayerQueue extends MediaQueue implements MediaPlayerPool.Listener {
+
+    private static final int PLAYER_POOL_SIZE = 16;
+    // Number of words being prepared ahead of the one that is playing
+    private static final int LOOKAHEAD = 3;
+
+    private MediaPlayerPool pool;
+
+    // Words waiting after the current one
+    private LinkedList<Item> items;
+    // Words holding a pinned player of the pool
+    private Set<Item> acquired;
+
+    private Item currentItem;
+    private MediaPlayer current;
+    // Player that starts as soon as it is prepared
+    private MediaPlayer waiting;
+    // Player started by the framework after the current one, see linkNext()
+    private MediaPlayer chained;
+    // Word of the chained player, still in items until onCompletion()
+    private Item chainedItem;
+
+    private boolean lowWaterSent;
+    private final Runnable lowWaterCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkLowWater();
+        }
+    };
+
+    // Inter-word gap measurement, only used in debug builds
+    private long wordEndTime;
+    private long gapTotal;
+    private int gapCount;
+
+    public MediaPlayerQueue(MediaQueueCallback callback, Context context) {
+        super(callback, context);
+        items = new LinkedList<Item>();
+        acquired = new HashSet<Item>();
+        pool = new MediaPlayerPool(context, PLAYER_POOL_SIZE, this);
+    }
+
+    private void acquire(Item item) {
+        if (acquired.contains(item) || SHUTDOWN.equals(item.sound)) {
+            return;
+        }
+        int clip = findSound(item.sound);
+        if (clip >= 0 && pool.acquire(item.sound, clip) != null) {
+            acquired.add(item);
+        }
+    }
+
+    private void finish(Item item) {
+        if (item != null && acquired.remove(item)) {
+            pool.unpin(item.sound);
+        }
+    }
+
+    /**
+     * Prepares players for the next few words only, so the first word can start as soon as it
+     * is ready instead of waiting for the whole sentence.
+     */
+    private void acquireAhead() {
+        int n = 0;
+        for (Item item : items) {
+            if (n++ >= LOOKAHEAD) {
+                break;
+            }
+            acquire(item);
+        }
+    }
+
+    private void playNext() {
+        boolean wasPlaying = currentItem != null;
+        finish(currentItem);
+        currentItem = null;
+        current = null;
+        waiting = null;
+        chained = null;
+        chainedItem = null;
+        while (!items.isEmpty()) {
+            Item item = items.removeFirst();
+            acquire(item);
+            acquireAhead();
+
+            if (SHUTDOWN.equals(item.sound)) {
+                if (BuildConfig.DEBUG) {
+                    Log.d("MediaQueue", "Shutdown. Killing...");
+                }
+                callback.mediaQueueShutdown();
+                return;
+            }
+
+            MediaPlayer mp = acquired.contains(item) ? pool.get(item.sound) : null;
+            if (mp == null) {
+                // Could not be prepared, skip it
+                finish(item);
+                continue;
+            }
+            currentItem = item;
+            current = mp;
+            if (pool.isPrepared(mp)) {
+                start(mp);
+            } else {
+                if (BuildConfig.DEBUG) {
+                    Log.d("MediaQueue", "Waiting for: " + item.sound);
+                }
+                waiting = mp;
+            }
+            return;
+        }
+        wordEndTime = 0;
+        if (wasPlaying) {
+            callback.mediaQueueEmpty();
+        }
+    }
+
+    private void start(MediaPlayer mp) {
+        if (BuildConfig.DEBUG) {
+            Log.d("MediaQueue", "Playback started: " + currentItem.sound);
+        }
+        if (mp.getCurrentPosition() != 0) {
+            mp.seekTo(0);
+        }
+        linkNext(mp);
+        mp.start();
+        measureGap(mp);
+        callback.mediaQueuePlaying(currentItem.index);
+        checkLowWater();
+    }
+
+    /**
+     * Lets the framework start the player of the next word the moment this one ends, instead
+     * of waiting for onCompletion() to come through the looper.
+     */
+    private void linkNext(MediaPlayer mp) {
+        chained = null;
+        chainedItem = null;
+        Item next = items.peekFirst();
+        if (BuildConfig.gaplessPlayback && next != null && acquired.contains(next)) {
+            MediaPlayer nextMp = pool.get(next.sound);
+            // A player can not follow itself, a repeated word falls back to onCompletion()
+            if (nextMp != null && nextMp != mp && pool.isPrepared(nextMp)) {
+                if (nextMp.getCurrentPosition() != 0) {
+                    nextMp.seekTo(0);
+                }
+                chained = nextMp;
+                chainedItem = next;
+            }
+        }
+        try {
+            mp.setNextMediaPlayer(chained);
+        } catch (IllegalStateException e) {
+            chained = null;
+            chainedItem = null;
+        }
+    }
+
+    /**
+     * Links the current player again after the word following it has changed.
+     */
+    private void relink() {
+        if (current != null && waiting == null && current.isPlaying()) {
+            linkNext(current);
+        }
+    }
+
+    /**
+     * Reports the low water mark once the rest of the queue gets short enough. Until then the
+     * check is scheduled for the moment the mark should be reached.
+     */
+    private void checkLowWater() {
+        audioHandler.removeCallbacks(lowWaterCheck);
+        if (lowWaterMillis <= 0 || lowWaterSent || current == null || waiting != null) {
+            return;
+        }
+        int remaining = getRemainingMillis();
+        if (remaining < 0) {
+            // Not known yet, checked again when the next player is prepared
+            return;
+        }
+        if (remaining <= lowWaterMillis) {
+            lowWaterSent = true;
+            callback.mediaQueueLowWater(remaining);
+        } else {
+            audioHandler.postDelayed(lowWaterCheck, remaining - lowWaterMillis);
+        }
+    }
+
+    /**
+     * Returns how long the rest of the queue plays, or -1 if some of its players are not
+     * prepared yet.
+     */
+    private int getRemainingMillis() {
+        int remaining = current.getDuration() - current.getCurrentPosition();
+        for (Item item : items) {
+            if (SHUTDOWN.equals(item.sound)) {
+                break;
+            }
+            if (!acquired.contains(item)) {
+                return -1;
+            }
+            MediaPlayer mp = pool.get(item.sound);
+            if (mp != null) {
+                if (!pool.isPrepared(mp)) {
+                    return -1;
+                }
+                remaining += mp.getDuration();
+            }
+        }
+        return remaining;
+    }
+
+    private void measureGap(MediaPlayer mp) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long startTime = now - mp.getCurrentPosition();
+        if (wordEndTime != 0) {
+            gapTotal += startTime - wordEndTime;
+            gapCount++;
+            Log.d("MediaQueue", "Inter-word gap: " + (startTime - wordEndTime) + " ms, average "
+                    + (gapTotal / gapCount) + " ms" + (BuildConfig.gaplessPlayback ? " (gapless)" : ""));
+        }
+        wordEndTime = startTime + mp.getDuration();
+    }
+
+    @Override
+    protected void onEnqueue(Item[] newItems, int mode) {
+        // Unknown words are dropped, the indices of the others still match the ones the server sent
+        LinkedList<Item> known = new LinkedList<Item>();
+        for (Item item : newItems) {
+            if (SHUTDOWN.equals(item.sound) || findSound(item.sound) >= 0) {
+                known.add(item);
+            }
+        }
+        if (known.isEmpty()) {
+            return;
+        }
+        lowWaterSent = false;
+
+        if (insert(items, known, mode, currentItem)) {
+            // Cut the current word, it keeps its player and plays again after the interruption
+            if (waiting == null && current.isPlaying()) {
+                current.pause();
+            }
+            try {
+                current.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+            }
+            if (chained != null && chained.isPlaying()) {
+                // Started by the framework before onCompletion() got here
+                chained.pause();
+            }
+            currentItem = null;
+            current = null;
+            playNext();
+        } else if (currentItem == null) {
+            playNext();
+        } else {
+            acquireAhead();
+            relink();
+            checkLowWater();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d("MediaQueue", "Player pool hits: " + pool.getHitCount() + ", misses: " + pool.getMissCount());
+        }
+    }
+
+    @Override
+    protected void onPreload(String[] sounds) {
+        for (String sound : sounds) {
+            if (!SHUTDOWN.equals(sound)) {
+                int clip = findSound(sound);
+                if (clip >= 0) {
+                    pool.warm(sound, clip);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onClear() {
+        items.clear();
+        acquired.clear();
+        currentItem = null;
+        current = null;
+        waiting = null;
+        chained = null;
+        chainedItem = null;
+        wordEndTime = 0;
+        lowWaterSent = false;
+        audioHandler.removeCallbacks(lowWaterCheck);
+        pool.recycle();
+    }
+
+    @Override
+    protected void onRelease() {
+        onClear();
+        pool.release();
+    }
+
+    @Override
+    public void onPlayerPrepared(MediaPlayer mediaPlayer) {
+        if (mediaPlayer == waiting) {
+            waiting = null;
+            start(mediaPlayer);
+        } else if (chained == null) {
+            // The next word got ready while the current one plays, it can still be linked
+            relink();
+        }
+        checkLowWater();
+    }
+
+    @Override
+    public void onPlayerError(MediaPlayer mediaPlayer) {
+        if (mediaPlayer == current) {
+            playNext();
+        } else if (mediaPlayer == chained) {
+            relink();
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mediaPlayer) {
+        if (mediaPlayer != current) {
+            return;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.i("MediaQueue", "Playback completed");
+        }
+        MediaPlayer next = chained;
+        if (next != null) {
+            // Already playing, only catch up with the queue
+            try {
+                mediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+            }
+            finish(currentItem);
+            // Words queued since the framework started it may be ahead of it by now
+            currentItem = chainedItem;
+            items.remove(currentItem);
+            current = next;
+            acquireAhead();
+            if (BuildConfig.DEBUG) {
+                Log.d("MediaQueue", "Playback started: " + currentItem.sound + " (chained)");
+            }
+            linkNext(next);
+            measureGap(next);
+            callback.mediaQueuePlaying(currentItem.index);
+            checkLowWater();
+        } else {
+            playNext();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import sk.ksp.callcentrum.BuildConfig;
+import sk.ksp.callcentrum.core.PlayQueue;
+
+/**
+ * Plays sentences put together from the word clips of the VoiceBundle.
+ *
+ * A sentence pushed to the queue replaces whatever is playing. More words can be appended to the
+ * queue, put right after the word that is playing, or interrupt it when they have a higher
+ * priority. Once the last word is played the queue reports that it is empty. The special word
+ * "shutdown" ends the call when reached.
+ * Progress is reported as each word starts, and once per sentence when less than the low water
+ * mark of audio is left, so the server can send the next sentence before there is silence.
+ *
+ * The mailbox and the order of the words are in PlayQueue, the messages run on an audio thread
+ * of a HandlerExecutor. All player state is created and touched on the audio thread only, the
+ * on*() methods of the implementations, the callbacks of their players and the callbacks of
+ * the queue run there.
+ */
+abstract class MediaQueue extends PlayQueue {
+
+    interface MediaQueueCallback {
+        public void mediaQueueEmpty();
+        public void mediaQueueShutdown();
+        // index of the word among the words queued since the last push
+        public void mediaQueuePlaying(int index);
+        public void mediaQueueLowWater(int remainingMillis);
+    }
+
+    protected final Context context;
+    protected final MediaQueueCallback callback;
+    protected final VoiceBundle bundle;
+
+    // Handler of the audio thread
+    protected final Handler audioHandler;
+
+    protected MediaQueue(MediaQueueCallback callback, Context context) {
+        this(callback, context, new HandlerExecutor("MediaQueue"));
+    }
+
+    private MediaQueue(MediaQueueCallback callback, Context context, HandlerExecutor executor) {
+        super(executor);
+        executor.setQueue(this);
+        this.callback = callback;
+        this.context = context;
+        bundle = VoiceBundle.get(context);
+        audioHandler = executor.getHandler();
+    }
+
+    public static MediaQueue create(MediaQueueCallback callback, Context context) {
+        if (BuildConfig.pcmPlayback) {
+            return new AudioTrackQueue(callback, context);
+        }
+        return new MediaPlayerQueue(callback, context);
+    }
+
+    /**
+     * Returns the number of the sound in the voice bundle, or -1 if there is no such sound.
+     */
+    protected int findSound(String sound) {
+        int clip = bundle.find(sound);
+        if (clip < 0 && BuildConfig.DEBUG) {
+            Log.w("MediaQueue", "Sound does not exist: " + sound + "!");
+        }
+        return clip;
+    }
+}
@@ -0,0 +1,183 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import sk.ksp.callcentrum.BuildConfig;
+
+/**
+ * All word clips decoded to PCM in one file, mapped into memory.
+ *
+ * The file is built in the background the first time it is asked for after the voice bundle
+ * changed, until then get() returns null and the clips are decoded one by one.
+ * The clips of the bank are slices of a single mapping shared by all calls, so playing a word
+ * needs neither its resource to be opened nor decoding, and the audio stays out of the heap.
+ *
+ * Layout: the PCM data of all clips, then the index (count, and name, offset, length, sample
+ * rate and channel count of every clip), then the checksum of the voice bundle, the offset of
+ * the index and a magic number.
+ */
+class PcmBank {
+
+    private static final String FILE_NAME = "pcm.bank";
+    private static final int MAGIC = 0x50434d42;
+    private static final int TRAILER_BYTES = 16;
+
+    private static PcmBank bank;
+    private static Thread builder;
+
+    private final HashMap<String, PcmClip> clips;
+
+    private PcmBank(HashMap<String, PcmClip> clips) {
+        this.clips = clips;
+    }
+
+    /**
+     * Returns the bank, or null if it is not built yet. The first call starts building it.
+     */
+    public static synchronized PcmBank get(Context context) {
+        if (bank != null || builder != null) {
+            return bank;
+        }
+        final VoiceBundle voiceBundle = VoiceBundle.get(context);
+        final long stamp = voiceBundle.getChecksum();
+        final File file = new File(context.getFilesDir(), FILE_NAME);
+        try {
+            bank = load(file, stamp);
+        } catch (IOException e) {
+            Log.w("PcmBank", "Could not load the bank: " + e.toString());
+        }
+        if (bank == null) {
+            builder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    PcmBank built = null;
+                    try {
+                        build(voiceBundle, file, stamp);
+                        built = load(file, stamp);
+                    } catch (IOException e) {
+                        Log.e("PcmBank", "Could not build the bank: " + e.toString());
+                    }
+                    synchronized (PcmBank.class) {
+                        bank = built;
+                        // A failed build is not retried until the next start of the app
+                        if (built != null) {
+                            builder = null;
+                        }
+                    }
+                }
+            }, "PcmBank");
+            builder.start();
+        }
+        return bank;
+    }
+
+    /**
+     * Returns the clip of the sound, or null if it is not in the bank.
+     */
+    public PcmClip find(String sound) {
+        return clips.get(sound);
+    }
+
+    private static PcmBank load(File file, long stamp) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        MappedByteBuffer map;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        int size = map.capacity();
+        if (size < TRAILER_BYTES || map.getInt(size - 4) != MAGIC || map.getLong(size - TRAILER_BYTES) != stamp) {
+            // Built from another voice bundle
+            return null;
+        }
+
+        map.position(map.getInt(size - 8));
+        int count = map.getInt();
+        HashMap<String, PcmClip> clips = new HashMap<String, PcmClip>(count * 2);
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[map.getShort()];
+            map.get(name);
+            int offset = map.getInt();
+            int length = map.getInt();
+            int sampleRate = map.getInt();
+            int channelCount = map.getInt();
+
+            ByteBuffer data = map.duplicate();
+            data.position(offset);
+            data.limit(offset + length);
+            clips.put(new String(name, "UTF-8"), new PcmClip(data.slice(), sampleRate, channelCount));
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d("PcmBank", "Mapped " + count + " clips, " + size / 1024 + " kB");
+        }
+        return new PcmBank(clips);
+    }
+
+    private static void build(VoiceBundle bundle, File file, long stamp) throws IOException {
+        long startTime = System.currentTimeMillis();
+        file.delete();
+        File tmp = new File(file.getPath() + ".tmp");
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        int offset = 0;
+        int count = 0;
+        try {
+            for (int i = 0; i < bundle.getCount(); i++) {
+                String sound = bundle.getName(i);
+                PcmClip clip;
+                try {
+                    clip = PcmDecoder.decode(bundle.getFileDescriptor(), bundle.getOffset(i), bundle.getLength(i));
+                } catch (IOException e) {
+                    // Left out, it is decoded again when played
+                    Log.w("PcmBank", "Could not decode " + sound + ": " + e.toString());
+                    continue;
+                }
+                int length = clip.data.limit();
+                out.write(clip.data.array(), clip.data.arrayOffset(), length);
+                index.writeUTF(sound);
+                index.writeInt(offset);
+                index.writeInt(length);
+                index.writeInt(clip.sampleRate);
+                index.writeInt(clip.channelCount);
+                offset += length;
+                count++;
+            }
+            out.writeInt(count);
+            index.flush();
+            indexBytes.writeTo(out);
+            out.writeLong(stamp);
+            out.writeInt(offset);
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d("PcmBank", "Built " + count + " clips, " + file.length() / 1024 + " kB in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+}
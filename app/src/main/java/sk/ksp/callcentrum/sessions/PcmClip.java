@@ -0,0 +1,32 @@
+package sk.ksp.callcentrum.sessions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoded word clip, 16 bit PCM in native byte order. The data is either a heap buffer or a
+ * slice of the mapped PcmBank, its position is 0 and its limit the length of the clip.
+ */
+class PcmClip {
+
+    public final ByteBuffer data;
+    public final int sampleRate;
+    public final int channelCount;
+
+    public PcmClip(ByteBuffer data, int sampleRate, int channelCount) {
+        this.data = data;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    public int getFrameSize() {
+        return 2 * channelCount;
+    }
+
+    public int getDurationMillis() {
+        return (int) ((long) data.limit() / getFrameSize() * 1000 / sampleRate);
+    }
+
+    public boolean hasSameFormat(PcmClip other) {
+        return other != null && sampleRate == other.sampleRate && channelCount == other.channelCount;
+    }
+}
@@ -0,0 +1,100 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a compressed clip to PCM using the platform codecs.
+ */
+class PcmDecoder {
+
+    private static final long TIMEOUT_US = 10000;
+
+    private PcmDecoder() {
+    }
+
+    public static PcmClip decode(FileDescriptor fd, long offset, long length) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(fd, offset, length);
+            if (extractor.getTrackCount() < 1) {
+                throw new IOException("No audio track");
+            }
+            MediaFormat format = extractor.getTrackFormat(0);
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            extractor.selectTrack(0);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+            byte[] chunk = new byte[0];
+            boolean inputDone = false;
+
+            while (true) {
+                if (!inputDone) {
+                    int inIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (inIndex >= 0) {
+                        int size = extractor.readSampleData(inputBuffers[inIndex], 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outIndex >= 0) {
+                    if (info.size > 0) {
+                        ByteBuffer buffer = outputBuffers[outIndex];
+                        buffer.position(info.offset);
+                        buffer.limit(info.offset + info.size);
+                        if (chunk.length < info.size) {
+                            chunk = new byte[info.size];
+                        }
+                        buffer.get(chunk, 0, info.size);
+                        pcm.write(chunk, 0, info.size);
+                    }
+                    codec.releaseOutputBuffer(outIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                } else if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+            }
+
+            return new PcmClip(ByteBuffer.wrap(pcm.toByteArray()), sampleRate, channelCount);
+        } catch (IllegalStateException e) {
+            throw new IOException("Decoder failed: " + e.toString());
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+}
@@ -1,100 +1,453 @@
 package sk.ksp.callcentrum.sessions;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.media.MediaPlayer;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetAddress;
-import java.net.Socket;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
 
 import sk.ksp.callcentrum.BuildConfig;
 import sk.ksp.callcentrum.CallSessionManager;
 import sk.ksp.callcentrum.DataStorage;
 import sk.ksp.callcentrum.R;
+import sk.ksp.callcentrum.core.CallProtocol;
+import sk.ksp.callcentrum.core.CallTimer;
+import sk.ksp.callcentrum.core.ChannelTransport;
+import sk.ksp.callcentrum.core.CommandTokenizer;
+import sk.ksp.callcentrum.core.FrameCodec;
+import sk.ksp.callcentrum.core.LinkStats;
+import sk.ksp.callcentrum.core.SessionTrace;
+import sk.ksp.callcentrum.core.UiSink;
 
 public class PlayQueueSession extends CallSessionManager {
 
     private String phoneNumber;
     private boolean dialerOpen;
 
-    private class TimerUpdateRunnable implements Runnable {
+    private CallTimer callTimer;
 
-        private boolean stop = false;
-        private int seconds = 0;
+    /**
+     * Pings the server every interval, a TCP connection to a phone that left the Wi-Fi can
+     * look alive for minutes. The link is declared dead after HEARTBEAT_MISSES pings in a row
+     * without a pong.
+     */
+    private class Heartbeat implements Runnable, CallProtocol.PongListener {
+
+        private final int interval;
+        private volatile boolean stop = false;
+        private int seq = 0;
+        // Time the last ping was sent, 0 if it has been answered
+        private long sentAt = 0;
+        private int misses = 0;
+
+        public Heartbeat(int interval) {
+            this.interval = interval;
+        }
 
         @Override
         public void run() {
             while (!stop) {
-                try {
-                    Thread.sleep(1000);
-                    uiHandler.obtainMessage(MESSAGE_UPDATE_TIME, String.format("%02d:%02d", seconds / 60, seconds % 60)).sendToTarget();
-                    seconds++;
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                SystemClock.sleep(interval);
+                if (!stop) {
+                    beat();
+                }
+            }
+        }
+
+        private synchronized void beat() {
+            if (serverCommThread.isReconnecting()) {
+                sentAt = 0;
+                misses = 0;
+                return;
+            }
+            if (sentAt != 0) {
+                linkStats.addLoss();
+                if (++misses >= HEARTBEAT_MISSES) {
+                    Log.w("PlayQueueSession", "No pong for " + misses + " pings, " + linkStats);
+                    sentAt = 0;
+                    misses = 0;
+                    serverCommThread.onLinkDead();
+                    return;
+                }
+            }
+            seq++;
+            sentAt = SystemClock.uptimeMillis();
+            serverCommThread.sendPing(seq, linkStats.getRtt(), linkStats.getJitter());
+        }
+
+        @Override
+        public synchronized void onPong(int pong) {
+            if (pong == seq && sentAt != 0) {
+                linkStats.addSample((int) (SystemClock.uptimeMillis() - sentAt));
+                sentAt = 0;
+                misses = 0;
+                if (BuildConfig.DEBUG) {
+                    Log.d("PlayQueueSession", "Pong " + pong + ", " + linkStats);
                 }
             }
         }
 
-        public void stopTimer() {
+        public void stopHeartbeat() {
             stop = true;
         }
     }
 
-    private TimerUpdateRunnable timerUpdateRunnable;
+    private static final int HEARTBEAT_MISSES = 3;
 
-    private class ServerCommThread implements Runnable, MediaQueue.MediaQueueEmptyCallback {
+    private final LinkStats linkStats = new LinkStats();
+    private Heartbeat heartbeat;
 
-        private Socket commSocket;
-        private OutputStreamWriter out;
-        private BufferedReader in;
-        private MediaQueue queue = new MediaQueue(this, context, this);
+    // Event for the server produced while the session is reconnecting
+    private static class HeldEvent {
+        final String line;
+        final int opcode;
+        final int value;
+
+        HeldEvent(String line, int opcode, int value) {
+            this.line = line;
+            this.opcode = opcode;
+            this.value = value;
+        }
+    }
+
+    private class ServerCommThread implements Runnable, MediaQueue.MediaQueueCallback, UiSink {
+
+        private volatile ChannelTransport transport;
+        private InputStream in;
+        private CommandTokenizer line = new CommandTokenizer();
+        private MediaQueue queue = MediaQueue.create(this, context);
+        private VoiceBundle bundle = VoiceBundle.get(context);
+        private CallProtocol protocol = new CallProtocol(queue, this, bundle);
+        // Set when the server switched to the binary protocol
+        private volatile FrameCodec codec;
         private boolean properTermination;
 
-        private int readerState = 0;
+        // How long a dropped connection may be resumed, and the delays between the attempts
+        private static final int RESUME_WINDOW = 20000;
+        private static final int RESUME_DELAY_MIN = 250;
+        private static final int RESUME_DELAY_MAX = 4000;
+        private static final int HELD_EVENTS_MAX = 32;
+
+        private boolean reconnecting;
+        private final List<HeldEvent> held = new ArrayList<HeldEvent>();
+
+        // Set in run() if BuildConfig.sessionTrace is on
+        private volatile SessionTrace trace;
+
+        /**
+         * Starts recording the call into traces/ in the external files dir of the app.
+         */
+        private void openTrace() {
+            File dir = context.getExternalFilesDir("traces");
+            if (dir == null) {
+                Log.w("PlayQueueSession", "No external storage for the trace");
+                return;
+            }
+            File file = new File(dir, "session-" + System.currentTimeMillis() + ".trace");
+            try {
+                trace = new SessionTrace(new FileOutputStream(file));
+                queue.setTrace(trace);
+                if (BuildConfig.DEBUG) {
+                    Log.d("PlayQueueSession", "Tracing into " + file);
+                }
+            } catch (IOException e) {
+                Log.w("PlayQueueSession", "Trace: " + e.toString());
+            }
+        }
 
-        private static final int STATE_UNINITIALIZED = 0;
-        private static final int STATE_NORMAL = 1;
-        private static final int STATE_DEAD = 2;
+        private void trace(int type, String text) {
+            SessionTrace sessionTrace = trace;
+            if (sessionTrace != null) {
+                sessionTrace.record(type, text);
+            }
+        }
 
         private void serverWrite(String line) throws IOException {
             if (BuildConfig.DEBUG) {
                 Log.d("PlayQueueSession", "-> " + line);
             }
-            out.write(line + '\n');
-            out.flush();
+            trace(SessionTrace.OUT_LINE, line);
+            transport.send((line + '\n').getBytes("UTF-8"));
         }
 
-        private String serverRead() throws IOException {
-            String line = in.readLine();
+        /**
+         * Writes the event as a frame in the binary protocol, value is its payload or -1. While
+         * the session is reconnecting the event is held and sent once it is resumed.
+         */
+        private void serverWrite(String line, int opcode, int value) throws IOException {
+            synchronized (held) {
+                if (reconnecting) {
+                    hold(new HeldEvent(line, opcode, value));
+                    return;
+                }
+            }
+            try {
+                writeEvent(line, opcode, value);
+            } catch (IOException e) {
+                if (protocol.getResumeToken() == null || properTermination) {
+                    throw e;
+                }
+                // The reader notices the broken connection too and resumes the session
+                synchronized (held) {
+                    hold(new HeldEvent(line, opcode, value));
+                }
+            }
+        }
+
+        private void writeEvent(String line, int opcode, int value) throws IOException {
+            FrameCodec frameCodec = codec;
+            if (frameCodec == null) {
+                serverWrite(line);
+            } else {
+                if (BuildConfig.DEBUG) {
+                    Log.d("PlayQueueSession", "-> [" + line + "]");
+                }
+                trace(SessionTrace.OUT_LINE, line);
+                frameCodec.writeFrame(opcode, value);
+            }
+        }
+
+        private void hold(HeldEvent event) {
+            if (held.size() < HELD_EVENTS_MAX) {
+                held.add(event);
+            } else {
+                Log.w("PlayQueueSession", "Dropped while reconnecting: " + event.line);
+            }
+        }
+
+        /**
+         * Reads a line into the tokenizer without buffering past its end, the binary frames
+         * follow the handshake in the same stream. Returns false at the end of the stream.
+         */
+        private boolean serverRead() throws IOException {
+            boolean read = line.readLine(in);
             if (BuildConfig.DEBUG) {
-                Log.d("PlayQueueSession", line == null ? "<- (NULL)" : "<- " + line);
+                Log.d("PlayQueueSession", read ? "<- " + line.line() : "<- (NULL)");
+            }
+            if (read) {
+                trace(SessionTrace.IN_LINE, line.line());
+            }
+            return read;
+        }
+
+        /**
+         * Reads and handles the commands until the end of the stream.
+         */
+        private void readServer() throws IOException {
+            while (true) {
+                if (codec != null) {
+                    readFrames();
+                    return;
+                }
+                if (!serverRead()) {
+                    return;
+                }
+
+                if (protocol.getState() == CallProtocol.STATE_UNINITIALIZED) {
+                    if (protocol.onStartLine(line, BuildConfig.binaryProtocol)) {
+                        onStarted();
+                    }
+                    continue;
+                }
+                if (protocol.getState() != CallProtocol.STATE_NORMAL) {
+                    continue;
+                }
+                try {
+                    if (!protocol.onLine(line)) {
+                        Log.w("PlayQueueSession", "Unknown command (" + protocol.getUnknownCount()
+                                + " so far): " + line.line());
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w("PlayQueueSession", "Bad command: " + line.line());
+                }
+            }
+        }
+
+        /**
+         * Switches to the protocol the start line asked for.
+         */
+        private void onStarted() {
+            if (protocol.isBinary()) {
+                codec = new FrameCodec(in, transport.getOutputStream(), bundle);
+            }
+            if (protocol.getHeartbeatInterval() > 0 && heartbeat == null) {
+                heartbeat = new Heartbeat(protocol.getHeartbeatInterval());
+                protocol.setPongListener(heartbeat);
+                new Thread(heartbeat).start();
+            }
+        }
+
+        private boolean isReconnecting() {
+            synchronized (held) {
+                return reconnecting;
+            }
+        }
+
+        /**
+         * Sends a ping with the current round trip estimate. Not held while reconnecting, a
+         * failure is noticed by the missing pong.
+         */
+        private void sendPing(int seq, int rtt, int jitter) {
+            try {
+                FrameCodec frameCodec = codec;
+                if (frameCodec == null) {
+                    serverWrite("ping " + seq + " " + rtt + " " + jitter);
+                } else {
+                    if (BuildConfig.DEBUG) {
+                        Log.d("PlayQueueSession", "-> [ping " + seq + " " + rtt + " " + jitter + "]");
+                    }
+                    if (trace != null) {
+                        trace(SessionTrace.OUT_LINE, "ping " + seq + " " + rtt + " " + jitter);
+                    }
+                    frameCodec.writeFrame(FrameCodec.OP_PING, seq, rtt, jitter);
+                }
+            } catch (IOException e) {
+                Log.w("PlayQueueSession", "Ping failed: " + e.toString());
+            }
+        }
+
+        /**
+         * Closes the connection the heartbeat found dead, the reader then resumes the session
+         * or ends the call.
+         */
+        private void onLinkDead() {
+            ChannelTransport dead = transport;
+            if (dead != null) {
+                dead.close();
+            }
+        }
+
+        /**
+         * Connects again and asks the server to replay the commands sent after the ones we got,
+         * backing off between the attempts. The queue and the call timer keep running meanwhile.
+         * Returns false if the session could not be resumed.
+         */
+        private boolean resume(InetSocketAddress address) {
+            synchronized (held) {
+                reconnecting = true;
+            }
+            transport.close();
+            boolean binary = codec != null;
+            codec = null;
+            uiHandler.obtainMessage(MESSAGE_SHOW_MESSAGEBAR, resources.getString(R.string.ksp_reconnecting)).sendToTarget();
+
+            long deadline = SystemClock.uptimeMillis() + RESUME_WINDOW;
+            int delay = RESUME_DELAY_MIN;
+            while (!properTermination && SystemClock.uptimeMillis() + delay < deadline) {
+                SystemClock.sleep(delay);
+                delay = Math.min(2 * delay, RESUME_DELAY_MAX);
+                try {
+                    transport = new ChannelTransport(address);
+                    if (properTermination) {
+                        break;
+                    }
+                    in = transport.getInputStream();
+                    serverWrite("resume " + protocol.getResumeToken() + " " + protocol.getReceived());
+                    if (!serverRead()) {
+                        transport.close();
+                        continue;
+                    }
+                    if (!line.nextToken() || !line.tokenEquals("resumed")) {
+                        // The server does not know the session any more
+                        transport.close();
+                        break;
+                    }
+                    if (binary) {
+                        codec = new FrameCodec(in, transport.getOutputStream(), bundle);
+                    }
+                    synchronized (held) {
+                        reconnecting = false;
+                        for (HeldEvent event : held) {
+                            writeEvent(event.line, event.opcode, event.value);
+                        }
+                        held.clear();
+                    }
+                    uiHandler.obtainMessage(MESSAGE_HIDE_MESSAGEBAR).sendToTarget();
+                    trace(SessionTrace.LINK, "resumed " + protocol.getReceived());
+                    if (BuildConfig.DEBUG) {
+                        Log.d("PlayQueueSession", "Resumed after " + protocol.getReceived() + " commands");
+                    }
+                    return true;
+                } catch (IOException e) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d("PlayQueueSession", "Resume failed: " + e.toString());
+                    }
+                    synchronized (held) {
+                        reconnecting = true;
+                    }
+                    if (transport != null) {
+                        transport.close();
+                    }
+                }
+            }
+            synchronized (held) {
+                reconnecting = false;
+                held.clear();
+            }
+            return false;
+        }
+
+        private void readFrames() throws IOException {
+            int opcode;
+            while ((opcode = codec.readFrame()) >= 0) {
+                if (BuildConfig.DEBUG) {
+                    Log.d("PlayQueueSession", "<- [" + opcode + "]");
+                }
+                SessionTrace sessionTrace = trace;
+                if (sessionTrace != null) {
+                    sessionTrace.record(SessionTrace.IN_FRAME, codec.getFrame(), 0, codec.getFrameLength());
+                }
+                if (!protocol.onFrame(codec, opcode)) {
+                    Log.w("PlayQueueSession", "Unknown opcode: " + opcode);
+                }
+            }
+        }
+
+        @Override
+        public void showImage(String img) {
+            if ("old".equals(img)) {
+                uiHandler.obtainMessage(MESSAGE_SHOW_IMAGE, R.drawable.call_alf).sendToTarget();
+            } else if ("child".equals(img)) {
+                uiHandler.obtainMessage(MESSAGE_SHOW_IMAGE, R.drawable.call_child).sendToTarget();
+            } else if ("alf".equals(img)) {
+                uiHandler.obtainMessage(MESSAGE_SHOW_IMAGE, R.drawable.call_old).sendToTarget();
             }
-            return line;
+        }
+
+        @Override
+        public void showName(String name) {
+            uiHandler.obtainMessage(MESSAGE_SHOW_NAME, name).sendToTarget();
+        }
+
+        private void onLostSignal() {
+            protocol.setDead();
+            killCallWithMessage(resources.getString(R.string.ksp_lost_signal));
+            queue.clear();
+            callTimer.stopTimer();
         }
 
         private void handleCommFailure(Exception e) {
             if (BuildConfig.DEBUG) {
                 Log.e("PlayQueueSession", e.toString());
             }
-            readerState = STATE_DEAD;
+            protocol.setDead();
             killCallWithMessage(resources.getString(R.string.ksp_call_terminated));
-            timerUpdateRunnable.stopTimer();
+            callTimer.stopTimer();
         }
 
         public void sendButtonPress(char button) {
-            if (readerState == STATE_NORMAL) {
+            if (protocol.getState() == CallProtocol.STATE_NORMAL) {
                 try {
-                    serverWrite("button " + button);
+                    serverWrite("button " + button, FrameCodec.OP_BUTTON, button);
                 } catch (IOException e) {
                     handleCommFailure(e);
                 }
@@ -102,9 +455,9 @@ public class PlayQueueSession extends CallSessionManager {
         }
 
         public void sendShakeEvent() {
-            if (readerState == STATE_NORMAL) {
+            if (protocol.getState() == CallProtocol.STATE_NORMAL) {
                 try {
-                    serverWrite("shake");
+                    serverWrite("shake", FrameCodec.OP_SHAKE, -1);
                 } catch (IOException e) {
                     handleCommFailure(e);
                 }
@@ -112,68 +465,70 @@ public class PlayQueueSession extends CallSessionManager {
         }
 
         public void killComm() {
-            try {
-                properTermination = true;
-                commSocket.close();
-                queue.clear();
-            } catch (IOException e) {
+            properTermination = true;
+            if (transport != null) {
+                transport.close();
             }
+            queue.clear();
         }
 
         @Override
         public void run() {
             uiHandler.obtainMessage(MESSAGE_SHOW_NUMBER, phoneNumber).sendToTarget();
             uiHandler.obtainMessage(MESSAGE_SHOW_MESSAGEBAR, resources.getString(R.string.ksp_dialing)).sendToTarget();
+            if (BuildConfig.sessionTrace) {
+                openTrace();
+            }
             try {
-                InetAddress serverAddr = InetAddress.getByName(DataStorage.getStorage().getServerAddress());
-                commSocket = new Socket(serverAddr, Integer.decode(DataStorage.getStorage().getServerPort()));
+                List<String> servers = ConnectionRace.affinityOrder(DataStorage.getStorage().getServerTiers(),
+                        BuildConfig.druzinkaName);
+                // Offers the binary protocol with the checksum of our dictionary, servers
+                // without it ignore the rest of the line and answer "start"
+                String handshake = CallProtocol.handshake(BuildConfig.druzinkaName,
+                        phoneNumber, BuildConfig.binaryProtocol ? bundle.getChecksum() : -1);
+                trace(SessionTrace.OUT_LINE, handshake);
+                // The first attempt takes the connection opened while dialing, see WarmConnection
+                ConnectionRace race = new ConnectionRace(servers, handshake, BuildConfig.warmConnection);
+                transport = race.run();
+                if (properTermination) {
+                    // Hung up while connecting
+                    throw new ClosedChannelException();
+                }
+                InetSocketAddress address = transport.getAddress();
                 uiHandler.obtainMessage(MESSAGE_HIDE_MESSAGEBAR).sendToTarget();
-                timerUpdateRunnable = new TimerUpdateRunnable();
-                new Thread(timerUpdateRunnable).start();
-
-                out = new OutputStreamWriter(commSocket.getOutputStream());
-                in = new BufferedReader(new InputStreamReader(commSocket.getInputStream()));
+                callTimer = createCallTimer();
+                new Thread(callTimer).start();
 
-                serverWrite("druzinka " + BuildConfig.druzinkaName + " " + phoneNumber);
+                in = transport.getInputStream();
+                if (BuildConfig.DEBUG) {
+                    Log.d("PlayQueueSession", "<- " + race.getStartLine() + " (" + address + ")");
+                }
+                trace(SessionTrace.LINK, "connected " + address);
+                trace(SessionTrace.IN_LINE, race.getStartLine());
+                line.setLine(race.getStartLine());
+                if (protocol.onStartLine(line, BuildConfig.binaryProtocol)) {
+                    onStarted();
+                }
 
                 while (true) {
-                    String line = serverRead();
-                    if (line == null) {
-                        readerState = STATE_DEAD;
-                        killCallWithMessage(resources.getString(R.string.ksp_lost_signal));
-                        queue.clear();
-                        timerUpdateRunnable.stopTimer();
-                        break;
+                    try {
+                        readServer();
+                    } catch (IOException e) {
+                        if (properTermination || protocol.getResumeToken() == null) {
+                            throw e;
+                        }
+                        Log.w("PlayQueueSession", e.toString());
                     }
-
-                    switch (readerState) {
-                        case STATE_UNINITIALIZED:
-                            if ("start".equals(line)) {
-                                readerState = STATE_NORMAL;
-                            }
-                            break;
-                        case STATE_NORMAL:
-                            if (line.startsWith("play")) {
-                                queue.push(line.replace("play ", "").split(" "));
-                            } else if ("clear".equals(line)) {
-                                queue.clear();
-                            } else if (line.startsWith("image")) {
-                                String img = line.split(" ")[1];
-                                if ("old".equals(img)) {
-                                    uiHandler.obtainMessage(MESSAGE_SHOW_IMAGE, R.drawable.call_alf).sendToTarget();
-                                } else if ("child".equals(img)) {
-                                    uiHandler.obtainMessage(MESSAGE_SHOW_IMAGE, R.drawable.call_child).sendToTarget();
-                                } else if ("alf".equals(img)) {
-                                    uiHandler.obtainMessage(MESSAGE_SHOW_IMAGE, R.drawable.call_old).sendToTarget();
-                                }
-                            } else if (line.startsWith("name")) {
-                                uiHandler.obtainMessage(MESSAGE_SHOW_NAME, line.replaceFirst("name ", "")).sendToTarget();
-                            } else if ("shutdown".equals(line)) {
-                                queue.push(new String[] {"shutdown"});
-                            }
-                            break;
+                    trace(SessionTrace.LINK, "lost");
+                    if (!properTermination && protocol.getResumeToken() != null && resume(address)) {
+                        continue;
                     }
-
+                    if (properTermination) {
+                        // Hung up while reconnecting
+                        throw new ClosedChannelException();
+                    }
+                    onLostSignal();
+                    break;
                 }
 
             } catch (UnknownHostException e) {
@@ -183,22 +538,68 @@ public class PlayQueueSession extends CallSessionManager {
             } catch (IOException e) {
                 queue.clear();
                 if (properTermination) {
-                    readerState = STATE_DEAD;
+                    protocol.setDead();
                     killCallWithMessage(resources.getString(R.string.ksp_call_terminated));
-                    if (timerUpdateRunnable != null) {
-                        timerUpdateRunnable.stopTimer();
+                    if (callTimer != null) {
+                        callTimer.stopTimer();
                     }
                 } else {
                     Log.e("PlayQueueSession", e.toString());
                     killCallWithMessage(resources.getString(R.string.ksp_no_signal));
                 }
             }
+            if (heartbeat != null) {
+                heartbeat.stopHeartbeat();
+            }
+            if (transport != null) {
+                transport.close();
+            }
+            queue.release();
+            if (trace != null) {
+                trace.close();
+                if (BuildConfig.DEBUG && trace.getDropped() > 0) {
+                    Log.d("PlayQueueSession", "Trace dropped " + trace.getDropped() + " records");
+                }
+            }
         }
 
         @Override
         public void mediaQueueEmpty() {
+            trace(SessionTrace.QUEUE, "empty");
+            try {
+                serverWrite("empty", FrameCodec.OP_EMPTY, -1);
+            } catch (IOException e) {
+                handleCommFailure(e);
+            }
+        }
+
+        @Override
+        public void mediaQueueShutdown() {
+            trace(SessionTrace.QUEUE, "shutdown");
+            killComm();
+        }
+
+        @Override
+        public void mediaQueuePlaying(int index) {
+            if (trace != null) {
+                trace(SessionTrace.QUEUE, "playing " + index);
+            }
+            if (protocol.isProgressEnabled()) {
+                try {
+                    serverWrite("playing " + index, FrameCodec.OP_PLAYING, index);
+                } catch (IOException e) {
+                    handleCommFailure(e);
+                }
+            }
+        }
+
+        @Override
+        public void mediaQueueLowWater(int remainingMillis) {
+            if (trace != null) {
+                trace(SessionTrace.QUEUE, "lowwater " + remainingMillis);
+            }
             try {
-                serverWrite("empty");
+                serverWrite("lowwater " + remainingMillis, FrameCodec.OP_LOW_WATER_REACHED, Math.max(remainingMillis, 0));
             } catch (IOException e) {
                 handleCommFailure(e);
             }
@@ -236,104 +637,12 @@ public class PlayQueueSession extends CallSessionManager {
         }
     }
 
-    private static class MediaQueue implements MediaPlayer.OnCompletionListener {
-
-        private HashMap<String, MediaPlayer> mediaPlayerHashMap;
-        private Context context;
-        private ServerCommThread parent;
-
-        interface MediaQueueEmptyCallback {
-            public void mediaQueueEmpty();
-        }
-
-        private MediaQueueEmptyCallback mqeCallback;
-
-        private Queue<String> media;
-
-        private void play(String str) {
-
-            if ("shutdown".equals(str)) {
-                if (BuildConfig.DEBUG) {
-                    Log.d("MediaQueue", "Shutdown. Killing...");
-                }
-                parent.killComm();
-            }
-
-            if (BuildConfig.DEBUG) {
-                Log.d("MediaQueue", "Playback started: " + str);
-            }
-            MediaPlayer mp = mediaPlayerHashMap.get(str);
-            if (mp != null) {
-                mp.start();
-            }
-
-        }
-
-        public MediaQueue(MediaQueueEmptyCallback mqeCallback, Context context, ServerCommThread parent) {
-            media = new ConcurrentLinkedQueue<String>();
-            this.mqeCallback = mqeCallback;
-            this.context = context;
-            this.parent = parent;
-            mediaPlayerHashMap = new HashMap<String, MediaPlayer>();
-        }
-
-        public void push(String[] sounds) {
-            clear();
-            for (String sound : sounds) {
-                int soundID = context.getResources().getIdentifier(sound, "raw", "sk.ksp.callcentrum");
-
-                if (soundID == 0 && !"shutdown".equals(sound)) {
-                    if (BuildConfig.DEBUG) {
-                        Log.w("MediaQueue", "Sound does not exist: " + sound + "!");
-                    }
-                } else {
-                    media.add(sound);
-                    if (!"shutdown".equals(sound)) {
-                        try {
-                            AssetFileDescriptor afd = context.getResources().openRawResourceFd(soundID);
-                            MediaPlayer mediaPlayer = new MediaPlayer();
-                            mediaPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getDeclaredLength());
-                            mediaPlayer.prepare();
-                            mediaPlayer.setOnCompletionListener(this);
-                            mediaPlayerHashMap.put(sound, mediaPlayer);
-                            afd.close();
-                        } catch (IOException e) {
-                            Log.wtf("MediaQueue", "IOException: " + e.toString());
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }
-
-            if (!media.isEmpty()) {
-                play(media.remove());
-            }
-        }
-
-        public void clear() {
-            media.clear();
-                for(MediaPlayer mp : mediaPlayerHashMap.values()) {
-                    try {
-                        if (mp.isPlaying()) {
-                            mp.stop();
-                        }
-                        mp.release();
-                    } catch (IllegalStateException e) {
-                    }
-                }
-        }
-
-        @Override
-        public void onCompletion(MediaPlayer mediaPlayer) {
-            if (BuildConfig.DEBUG) {
-                Log.i("MediaQueue", "Playback completed");
-            }
-            if (!media.isEmpty()) {
-                play(media.remove());
-            } else {
-                mqeCallback.mediaQueueEmpty();
-            }
-        }
+    /**
+     * Returns the round trip statistics of the heartbeat, empty if the server does not ask
+     * for it.
+     */
+    public LinkStats getLinkStats() {
+        return linkStats;
     }
 
     private void displayInternalError(final String error) {
@@ -0,0 +1,225 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import sk.ksp.callcentrum.BuildConfig;
+import sk.ksp.callcentrum.core.CommandTokenizer;
+
+/**
+ * All word clips packed into one file by the packVoiceBundle task in app/build.gradle.
+ *
+ * The bundle starts with an index: magic, version, number of clips, the CRC32 of the clip
+ * bytes, and the word, variant, offset and length of every clip. The compressed clips follow.
+ * Bundles of version 1 have no CRC of the clips, they are read through to the end for it. The bundle is stored
+ * uncompressed in the apk, so it is opened once and every clip is played from its offset in
+ * the same file descriptor. A voice.bundle put into the external files directory of the app
+ * is used instead of the one in the apk, so the voice of a scenario can be swapped without
+ * building the app again.
+ */
+class VoiceBundle implements CommandTokenizer.Dictionary {
+
+    private static final String FILE_NAME = "voice.bundle";
+    private static final int MAGIC = 0x56424e44;
+    private static final int VERSION = 2;
+    // Without the CRC32 of the clips in the index
+    private static final int VERSION_NO_CRC = 1;
+
+    private static VoiceBundle bundle;
+
+    private final AssetFileDescriptor afd;
+    private final String[] names;
+    private final int[] offsets;
+    private final int[] lengths;
+    // Open addressing table of clip numbers + 1
+    private final int[] slots;
+    private final int mask;
+    private final long checksum;
+
+    private VoiceBundle() {
+        afd = null;
+        names = new String[0];
+        offsets = new int[0];
+        lengths = new int[0];
+        slots = new int[1];
+        mask = 0;
+        checksum = 0;
+    }
+
+    private VoiceBundle(AssetFileDescriptor afd, InputStream in) throws IOException {
+        this.afd = afd;
+        CRC32 crc = new CRC32();
+        DataInputStream index = new DataInputStream(new CheckedInputStream(new BufferedInputStream(in), crc));
+        if (index.readInt() != MAGIC) {
+            throw new IOException("Not a voice bundle");
+        }
+        int version = index.readShort();
+        if (version != VERSION && version != VERSION_NO_CRC) {
+            throw new IOException("Unknown voice bundle version " + version);
+        }
+        int count = index.readInt();
+        if (version == VERSION) {
+            // CRC32 of the clips, checked along with the index
+            index.readLong();
+        }
+        names = new String[count];
+        offsets = new int[count];
+        lengths = new int[count];
+        slots = new int[Integer.highestOneBit(Math.max(count, 1)) * 4];
+        mask = slots.length - 1;
+        for (int i = 0; i < count; i++) {
+            String word = index.readUTF();
+            int variant = index.readUnsignedByte();
+            names[i] = word + "__" + variant;
+            offsets[i] = index.readInt();
+            lengths[i] = index.readInt();
+
+            int h = names[i].hashCode();
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+        if (version == VERSION_NO_CRC) {
+            byte[] buffer = new byte[8192];
+            while (index.read(buffer) >= 0) {
+                // Checks the clips
+            }
+        }
+        checksum = crc.getValue();
+    }
+
+    /**
+     * Returns the bundle of the app, opened on the first call. If it can not be opened, an
+     * empty bundle is returned, so every word is reported as unknown.
+     */
+    public static synchronized VoiceBundle get(Context context) {
+        if (bundle == null) {
+            try {
+                bundle = open(context);
+            } catch (IOException e) {
+                Log.wtf("VoiceBundle", "IOException: " + e.toString());
+                e.printStackTrace();
+                bundle = new VoiceBundle();
+            }
+        }
+        return bundle;
+    }
+
+    private static VoiceBundle open(Context context) throws IOException {
+        File dir = context.getExternalFilesDir(null);
+        File file = dir != null ? new File(dir, FILE_NAME) : null;
+        AssetFileDescriptor afd;
+        InputStream in;
+        if (file != null && file.isFile()) {
+            afd = new AssetFileDescriptor(ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY),
+                    0, file.length());
+            in = new FileInputStream(file);
+        } else {
+            afd = context.getAssets().openFd(FILE_NAME);
+            in = context.getAssets().open(FILE_NAME);
+        }
+        try {
+            VoiceBundle voiceBundle = new VoiceBundle(afd, in);
+            if (BuildConfig.DEBUG) {
+                Log.d("VoiceBundle", "Opened " + voiceBundle.getCount() + " clips"
+                        + (file != null && file.isFile() ? " from " + file : ""));
+            }
+            return voiceBundle;
+        } catch (IOException e) {
+            afd.close();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the number of the clip, or -1 if there is no such sound.
+     */
+    public int find(String sound) {
+        int h = sound.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        int clip;
+        while ((clip = slots[slot]) != 0) {
+            if (names[clip - 1].equals(sound)) {
+                return clip - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of the sound in the ASCII bytes, or -1 if there is no such sound.
+     */
+    @Override
+    public int find(byte[] buffer, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + (buffer[i] & 0xff);
+        }
+        int slot = (h ^ (h >>> 16)) & mask;
+        int clip;
+        while ((clip = slots[slot]) != 0) {
+            String name = names[clip - 1];
+            if (name.length() == length && matches(name, buffer, offset)) {
+                return clip - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean matches(String name, byte[] buffer, int offset) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != (buffer[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return names.length;
+    }
+
+    @Override
+    public String getName(int clip) {
+        return names[clip];
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        return afd.getFileDescriptor();
+    }
+
+    public long getOffset(int clip) {
+        return afd.getStartOffset() + offsets[clip];
+    }
+
+    public long getLength(int clip) {
+        return lengths[clip];
+    }
+
+    /**
+     * Returns the CRC32 of the index, which changes with the set of clips and with their
+     * bytes through the CRC of the clips in it.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+}
@@ -0,0 +1,139 @@
+package sk.ksp.callcentrum.sessions;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import sk.ksp.callcentrum.BuildConfig;
+import sk.ksp.callcentrum.DataStorage;
+import sk.ksp.callcentrum.core.ChannelTransport;
+
+/**
+ * Connection to the server opened while the user is still dialing, so the call only has to do
+ * the handshake. The server address is resolved and connected in the background, the
+ * connection is handed to the next PlayQueueSession or closed when nobody dials for a while.
+ */
+public class WarmConnection {
+
+    private static final int IDLE_TIMEOUT = 30000;
+    // How long the first attempt of a call waits for a connection that is being opened
+    private static final int TAKE_TIMEOUT = 10000;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable closeIdle = new Runnable() {
+        @Override
+        public void run() {
+            ChannelTransport idle;
+            synchronized (WarmConnection.class) {
+                idle = transport;
+                transport = null;
+            }
+            if (idle != null) {
+                if (BuildConfig.DEBUG) {
+                    Log.d("WarmConnection", "Closing idle connection");
+                }
+                idle.close();
+            }
+        }
+    };
+
+    private static ChannelTransport transport;
+    // host:port of the connection, as in DataStorage
+    private static String endpoint;
+    private static boolean connecting;
+
+    private WarmConnection() {
+    }
+
+    /**
+     * Starts connecting to the server unless there is a connection already, and restarts the
+     * idle timeout. Called from the UI thread when the dialpad opens or a digit is typed.
+     */
+    public static void warm() {
+        List<List<String>> servers = DataStorage.getStorage().getServerTiers();
+        if (!BuildConfig.warmConnection || servers.isEmpty()) {
+            return;
+        }
+        // The server the call tries first
+        final String server = ConnectionRace.affinityOrder(servers, BuildConfig.druzinkaName).get(0);
+        handler.removeCallbacks(closeIdle);
+        handler.postDelayed(closeIdle, IDLE_TIMEOUT);
+        synchronized (WarmConnection.class) {
+            if (connecting || (transport != null && server.equals(endpoint))) {
+                return;
+            }
+            connecting = true;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ChannelTransport warm = null;
+                long start = SystemClock.uptimeMillis();
+                try {
+                    int colon = server.lastIndexOf(':');
+                    warm = new ChannelTransport(new InetSocketAddress(
+                            InetAddress.getByName(server.substring(0, colon)),
+                            Integer.decode(server.substring(colon + 1))));
+                    if (BuildConfig.DEBUG) {
+                        Log.d("WarmConnection", "Connected in " + (SystemClock.uptimeMillis() - start) + " ms");
+                    }
+                } catch (IOException e) {
+                    Log.w("WarmConnection", e.toString());
+                } catch (NumberFormatException e) {
+                    Log.w("WarmConnection", e.toString());
+                } catch (IndexOutOfBoundsException e) {
+                    Log.w("WarmConnection", "Bad server " + server);
+                }
+                ChannelTransport old;
+                synchronized (WarmConnection.class) {
+                    old = transport;
+                    transport = warm;
+                    endpoint = server;
+                    connecting = false;
+                    WarmConnection.class.notifyAll();
+                }
+                if (old != null) {
+                    old.close();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Returns the warm connection to the server (host:port) if it is still open, or null.
+     * Waits for the connection if it is being opened, called by the first attempt of
+     * ConnectionRace so the other servers are raced meanwhile.
+     */
+    static ChannelTransport take(String server) {
+        ChannelTransport warm;
+        synchronized (WarmConnection.class) {
+            long deadline = SystemClock.uptimeMillis() + TAKE_TIMEOUT;
+            long left;
+            while (connecting && (left = deadline - SystemClock.uptimeMillis()) > 0) {
+                try {
+                    WarmConnection.class.wait(left);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            warm = transport;
+            transport = null;
+            if (warm != null && !server.equals(endpoint)) {
+                warm.close();
+                warm = null;
+            }
+        }
+        handler.removeCallbacks(closeIdle);
+        if (warm != null && !warm.isAlive()) {
+            warm.close();
+            warm = null;
+        }
+        return warm;
+    }
+}
@@ -0,0 +1,190 @@
+package sk.ksp.callcentrum.benchmarks;
+
+import sk.ksp.callcentrum.core.PlayQueue;
+
+/**
+ * Stand-in for android.os.Handler and its Looper, which do not run on the JVM. Works the same
+ * way: messages come from a pool of at most MAX_POOL recycled ones, are kept in a linked list
+ * under a lock and taken by one looper thread; removeMessages() unlinks the pending ones.
+ * Only the looper is a stand-in, as a PlayQueue.Executor it runs the real PlayQueue like
+ * HandlerExecutor does in the app.
+ */
+class FakeHandler implements PlayQueue.Executor {
+
+    static final class Message {
+        int what;
+        int arg1;
+        int arg2;
+        Object obj;
+        Message next;
+    }
+
+    public interface Callback {
+        public void handleMessage(Message message);
+    }
+
+    private static final int MAX_POOL = 50;
+    // Ends the looper
+    private static final int QUIT = -1;
+
+    private final Object poolLock = new Object();
+    private Message pool;
+    private int poolSize;
+
+    private Message head;
+    private Message tail;
+    private volatile int size;
+
+    public Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+        Message message = null;
+        synchronized (poolLock) {
+            if (pool != null) {
+                message = pool;
+                pool = message.next;
+                message.next = null;
+                poolSize--;
+            }
+        }
+        if (message == null) {
+            message = new Message();
+        }
+        message.what = what;
+        message.arg1 = arg1;
+        message.arg2 = arg2;
+        message.obj = obj;
+        return message;
+    }
+
+    @Override
+    public void post(int what, int arg1, int arg2, Object obj) {
+        sendMessage(obtainMessage(what, arg1, arg2, obj));
+    }
+
+    @Override
+    public void remove(int what) {
+        removeMessages(what);
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        while (head != null) {
+            Message message = head;
+            head = message.next;
+            recycle(message);
+        }
+        tail = null;
+        size = 0;
+    }
+
+    public synchronized void sendMessage(Message message) {
+        if (tail == null) {
+            head = message;
+        } else {
+            tail.next = message;
+        }
+        tail = message;
+        size++;
+        notify();
+    }
+
+    public synchronized void removeMessages(int what) {
+        Message previous = null;
+        Message message = head;
+        while (message != null) {
+            Message next = message.next;
+            if (message.what == what) {
+                if (previous == null) {
+                    head = next;
+                } else {
+                    previous.next = next;
+                }
+                if (tail == message) {
+                    tail = previous;
+                }
+                size--;
+                recycle(message);
+            } else {
+                previous = message;
+            }
+            message = next;
+        }
+    }
+
+    /**
+     * Returns the next message, or null if there is none and block is false.
+     */
+    public synchronized Message next(boolean block) throws InterruptedException {
+        while (head == null) {
+            if (!block) {
+                return null;
+            }
+            wait();
+        }
+        Message message = head;
+        head = message.next;
+        if (head == null) {
+            tail = null;
+        }
+        size--;
+        message.next = null;
+        return message;
+    }
+
+    // Number of pending messages
+    public int size() {
+        return size;
+    }
+
+    public void recycle(Message message) {
+        message.obj = null;
+        synchronized (poolLock) {
+            if (poolSize < MAX_POOL) {
+                message.next = pool;
+                pool = message;
+                poolSize++;
+            }
+        }
+    }
+
+    /**
+     * Starts a looper thread handing the messages to the queue until quit().
+     */
+    public Thread loop(final PlayQueue queue) {
+        return loop(new Callback() {
+            @Override
+            public void handleMessage(Message message) {
+                queue.dispatch(message.what, message.arg1, message.arg2, message.obj);
+            }
+        });
+    }
+
+    /**
+     * Starts a looper thread handing the messages to the callback until quit().
+     */
+    public Thread loop(final Callback callback) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Message message = next(true);
+                        if (message.what == QUIT) {
+                            return;
+                        }
+                        callback.handleMessage(message);
+                        recycle(message);
+                    }
+                } catch (InterruptedException e) {
+                    // Quit
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public void quit() {
+        sendMessage(obtainMessage(QUIT, 0, 0, null));
+    }
+}
@@ -0,0 +1,102 @@
+package sk.ksp.callcentrum.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import sk.ksp.callcentrum.core.CallTimer;
+
+/**
+ * The messages the threads of a call send to the UI handler: the socket reader, the timer,
+ * the heartbeat and the audio thread all post into the one queue of the main looper. The
+ * senders of the fanOut group tick a CallTimer each, posting the time the way the one of
+ * CallSessionManager does, while the looper thread drains the queue; post measures one tick
+ * through an uncontended queue.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerFanOutBenchmark {
+
+    private static final int MESSAGE_UPDATE_TIME = 7;
+    // The main looper keeps up in a call, a queue growing without end would measure the heap
+    private static final int MAX_PENDING = 1000;
+    // Ticks of an hour and a half of call, then the timer starts again
+    private static final int MAX_TICKS = 90 * 60;
+
+    private final FakeHandler uiHandler = new FakeHandler();
+
+    /**
+     * The call timer of a sending thread.
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+
+        private FakeHandler uiHandler;
+        private CallTimer timer;
+        private int ticks;
+
+        @Setup
+        public void setUp(HandlerFanOutBenchmark benchmark) {
+            uiHandler = benchmark.uiHandler;
+        }
+
+        void tick() {
+            if (ticks++ % MAX_TICKS == 0) {
+                timer = new CallTimer(new CallTimer.Listener() {
+                    @Override
+                    public void onTick(String time) {
+                        uiHandler.post(MESSAGE_UPDATE_TIME, 0, 0, time);
+                    }
+                });
+            }
+            timer.tick();
+        }
+    }
+
+    @Benchmark
+    @Group("fanOut")
+    @GroupThreads(4)
+    public void send(Sender sender) {
+        while (uiHandler.size() > MAX_PENDING) {
+            Thread.yield();
+        }
+        sender.tick();
+    }
+
+    @Benchmark
+    @Group("fanOut")
+    @GroupThreads(1)
+    public void loop(Blackhole blackhole) throws InterruptedException {
+        FakeHandler.Message message;
+        while ((message = uiHandler.next(false)) != null) {
+            blackhole.consume(message.obj);
+            uiHandler.recycle(message);
+        }
+    }
+
+    @Benchmark
+    @Group("post")
+    public Object post(Sender sender) throws InterruptedException {
+        sender.tick();
+        FakeHandler.Message message = uiHandler.next(false);
+        Object obj = message.obj;
+        uiHandler.recycle(message);
+        return obj;
+    }
+}
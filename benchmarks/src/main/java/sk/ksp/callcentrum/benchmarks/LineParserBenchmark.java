@@ -0,0 +1,230 @@
+package sk.ksp.callcentrum.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import sk.ksp.callcentrum.core.AudioSink;
+import sk.ksp.callcentrum.core.CallProtocol;
+import sk.ksp.callcentrum.core.CommandTokenizer;
+import sk.ksp.callcentrum.core.UiSink;
+
+/**
+ * Reading and dispatching server commands the way ServerCommThread does, one command per op,
+ * against the String.split() parser it had before the tokenizer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParserBenchmark {
+
+    // A typical mix of the commands of a call
+    private static final String[] LINES = {
+            "play vitajte__0 v__0 hre__0 dobrodruzna__0",
+            "append jedna__0 dva__0 tri__0",
+            "name Agent 007",
+            "image old",
+            "interrupt 2 koniec__0",
+            "pong 17",
+            "play-after-current dovidenia__0",
+            "clear",
+            "lowwater 800",
+            "progress on",
+    };
+
+    /**
+     * Dictionary looking words up in the bytes of the line, like VoiceBundle.
+     */
+    static class Words implements CommandTokenizer.Dictionary {
+
+        private final String[] names = {"vitajte__0", "v__0", "hre__0", "dobrodruzna__0", "jedna__0",
+                "dva__0", "tri__0", "koniec__0", "dovidenia__0"};
+        private final int[] slots = new int[64];
+
+        Words() {
+            for (int i = 0; i < names.length; i++) {
+                int slot = slot(names[i].hashCode());
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & (slots.length - 1);
+                }
+                slots[slot] = i + 1;
+            }
+        }
+
+        private int slot(int h) {
+            return (h ^ (h >>> 16)) & (slots.length - 1);
+        }
+
+        @Override
+        public int find(byte[] buffer, int offset, int length) {
+            int h = 0;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + (buffer[i] & 0xff);
+            }
+            int slot = slot(h);
+            int word;
+            while ((word = slots[slot]) != 0) {
+                String name = names[word - 1];
+                if (name.length() == length && matches(name, buffer, offset)) {
+                    return word - 1;
+                }
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            return -1;
+        }
+
+        private static boolean matches(String name, byte[] buffer, int offset) {
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != (buffer[offset + i] & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getName(int id) {
+            return names[id];
+        }
+
+        @Override
+        public int getCount() {
+            return names.length;
+        }
+    }
+
+    /**
+     * Hands everything to the blackhole.
+     */
+    static class BlackholeSink implements AudioSink, UiSink {
+
+        private final Blackhole blackhole;
+
+        BlackholeSink(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void push(String[] words) {
+            blackhole.consume(words);
+        }
+
+        @Override
+        public void append(String[] words) {
+            blackhole.consume(words);
+        }
+
+        @Override
+        public void playAfterCurrent(String[] words) {
+            blackhole.consume(words);
+        }
+
+        @Override
+        public void interrupt(int priority, String[] words) {
+            blackhole.consume(priority);
+            blackhole.consume(words);
+        }
+
+        @Override
+        public void preload(String[] words) {
+            blackhole.consume(words);
+        }
+
+        @Override
+        public void clear() {
+            blackhole.consume(0);
+        }
+
+        @Override
+        public void setLowWater(int millis) {
+            blackhole.consume(millis);
+        }
+
+        @Override
+        public void showImage(String image) {
+            blackhole.consume(image);
+        }
+
+        @Override
+        public void showName(String name) {
+            blackhole.consume(name);
+        }
+    }
+
+    private ByteArrayInputStream in;
+    private final CommandTokenizer line = new CommandTokenizer();
+    private CallProtocol protocol;
+    private BlackholeSink sink;
+    private Blackhole blackhole;
+    private int next;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws UnsupportedEncodingException {
+        StringBuilder stream = new StringBuilder();
+        for (String s : LINES) {
+            stream.append(s).append('\n');
+        }
+        in = new ByteArrayInputStream(stream.toString().getBytes("UTF-8"));
+        this.blackhole = blackhole;
+        sink = new BlackholeSink(blackhole);
+        protocol = new CallProtocol(sink, sink, new Words());
+        line.setLine("start");
+        protocol.onStartLine(line, false);
+    }
+
+    @Benchmark
+    public boolean tokenizer() throws IOException {
+        if (!line.readLine(in)) {
+            in.reset();
+            line.readLine(in);
+        }
+        return protocol.onLine(line);
+    }
+
+    @Benchmark
+    public boolean split() {
+        String s = LINES[next];
+        next = (next + 1) % LINES.length;
+        String[] command = s.split(" ");
+        if (command[0].equals("play") || command[0].equals("append") || command[0].equals("play-after-current")) {
+            String[] words = new String[command.length - 1];
+            System.arraycopy(command, 1, words, 0, words.length);
+            sink.push(words);
+        } else if (command[0].equals("interrupt")) {
+            String[] words = new String[command.length - 2];
+            System.arraycopy(command, 2, words, 0, words.length);
+            sink.interrupt(Integer.parseInt(command[1]), words);
+        } else if (command[0].equals("name")) {
+            sink.showName(s.substring(5));
+        } else if (command[0].equals("image")) {
+            sink.showImage(command[1]);
+        } else if (command[0].equals("clear")) {
+            sink.clear();
+        } else if (command[0].equals("lowwater")) {
+            sink.setLowWater(Integer.parseInt(command[1]));
+        } else if (command[0].equals("pong")) {
+            blackhole.consume(Integer.parseInt(command[1]));
+        } else if (command[0].equals("progress")) {
+            blackhole.consume(command[1].equals("on"));
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package sk.ksp.callcentrum.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import sk.ksp.callcentrum.core.PlayQueue;
+
+/**
+ * The socket reader pushing sentences into the play queue and clearing it. The PlayQueue of
+ * MediaQueue runs on the audio thread of a FakeHandler, with the items kept in a list instead
+ * of players, so the messages, dropping the pending ones and the ordering of the items are
+ * the code of the app. Only the reader side is measured, like in a call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueChurnBenchmark {
+
+    private static final String[] SENTENCE = {"vitajte__0", "v__0", "hre__0", "dobrodruzna__0"};
+    private static final String[] MORE = {"jedna__0", "dva__0", "tri__0"};
+
+    /**
+     * MediaQueue without the players.
+     */
+    static class ListQueue extends PlayQueue {
+
+        private final List<Item> queued = new ArrayList<Item>();
+
+        ListQueue(Executor executor) {
+            super(executor);
+        }
+
+        @Override
+        protected void onEnqueue(Item[] items, int mode) {
+            insert(queued, Arrays.asList(items), mode, null);
+        }
+
+        @Override
+        protected void onPreload(String[] sounds) {
+        }
+
+        @Override
+        protected void onClear() {
+            queued.clear();
+        }
+
+        @Override
+        protected void onRelease() {
+            queued.clear();
+        }
+    }
+
+    private FakeHandler audioHandler;
+    private ListQueue queue;
+
+    @Setup
+    public void setUp() {
+        audioHandler = new FakeHandler();
+        queue = new ListQueue(audioHandler);
+        audioHandler.loop(queue);
+    }
+
+    @TearDown
+    public void tearDown() {
+        queue.release();
+        audioHandler.quit();
+    }
+
+    @Benchmark
+    public void pushClear() {
+        queue.push(SENTENCE);
+        queue.clear();
+    }
+
+    @Benchmark
+    public void pushAppend() {
+        queue.push(SENTENCE);
+        queue.append(MORE);
+        queue.append(MORE);
+    }
+}
@@ -0,0 +1,53 @@
+package sk.ksp.callcentrum.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import sk.ksp.callcentrum.core.CallTimer;
+
+/**
+ * The mm:ss call time CallTimer formats every second, through CallTimer.format() and with the
+ * digits put together by hand for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerFormatBenchmark {
+
+    // Up to an hour and a half of call
+    private static final int MAX_SECONDS = 90 * 60;
+
+    private int seconds;
+    private final char[] chars = new char[5];
+
+    @Benchmark
+    public String format() {
+        seconds = (seconds + 1) % MAX_SECONDS;
+        return CallTimer.format(seconds);
+    }
+
+    @Benchmark
+    public String digits() {
+        seconds = (seconds + 1) % MAX_SECONDS;
+        int minutes = seconds / 60;
+        int rest = seconds % 60;
+        chars[0] = (char) ('0' + minutes / 10);
+        chars[1] = (char) ('0' + minutes % 10);
+        chars[2] = ':';
+        chars[3] = (char) ('0' + rest / 10);
+        chars[4] = (char) ('0' + rest % 10);
+        return new String(chars);
+    }
+}
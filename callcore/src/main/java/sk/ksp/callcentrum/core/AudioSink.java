@@ -0,0 +1,19 @@
+package sk.ksp.callcentrum.core;
+
+/**
+ * Plays the words the server sends, see PlayQueue. The methods are called from the thread
+ * reading the server and must not block.
+ */
+public interface AudioSink {
+    /**
+     * Replaces whatever is playing with the words.
+     */
+    public void push(String[] words);
+    public void append(String[] words);
+    public void playAfterCurrent(String[] words);
+    public void interrupt(int priority, String[] words);
+    public void preload(String[] words);
+    public void clear();
+    // 0 disables the low water events
+    public void setLowWater(int millis);
+}
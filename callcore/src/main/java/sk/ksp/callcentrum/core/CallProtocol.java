@@ -0,0 +1,289 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.IOException;
+
+/**
+ * Client side of the call protocol, without the connection.
+ *
+ * The client sends the handshake line, the server answers with a start line and then sends
+ * commands, as text lines or as frames of the FrameCodec if the start line says "binary".
+ * The commands go to the AudioSink and the UiSink.
+ *
+ * Text commands: play, append, play-after-current and preload followed by words, interrupt
+ * with a priority and words, clear, lowwater with milliseconds, progress on|off, image, name
+ * followed by the rest of the line, pong with a sequence number and shutdown.
+ *
+ * Options of the start line: binary, resume with a token and heartbeat with an interval in
+ * milliseconds. Unknown options are ignored.
+ */
+public class CallProtocol {
+
+    public static final String SHUTDOWN = "shutdown";
+
+    public static final int STATE_UNINITIALIZED = 0;
+    public static final int STATE_NORMAL = 1;
+    public static final int STATE_DEAD = 2;
+
+    public interface PongListener {
+        public void onPong(int seq);
+    }
+
+    private final AudioSink audio;
+    private final UiSink ui;
+    private final CommandTokenizer.Dictionary dictionary;
+    private final CommandDispatcher commands = new CommandDispatcher();
+    private PongListener pongListener;
+
+    private volatile int state = STATE_UNINITIALIZED;
+    private boolean binary;
+    private String resumeToken;
+    private int heartbeatInterval;
+    // Opt-in playback progress events for the server
+    private volatile boolean progressEvents;
+    // Number of commands received since start
+    private int received;
+
+    public CallProtocol(AudioSink audio, UiSink ui, CommandTokenizer.Dictionary dictionary) {
+        this.audio = audio;
+        this.ui = ui;
+        this.dictionary = dictionary;
+        registerCommands();
+    }
+
+    /**
+     * Returns the handshake line. Offers the binary protocol with the checksum of the
+     * dictionary if it is not negative, servers without it ignore the rest of the line.
+     */
+    public static String handshake(String druzinkaName, String number, long checksum) {
+        return "druzinka " + druzinkaName + " " + number
+                + (checksum >= 0 ? " binary " + Long.toHexString(checksum) : "");
+    }
+
+    public void setPongListener(PongListener pongListener) {
+        this.pongListener = pongListener;
+    }
+
+    /**
+     * Handles a line received before the start line. Returns true if it was the start line,
+     * the state is normal from then on.
+     *
+     * @param binaryOffered whether the handshake offered the binary protocol, a start line
+     *                      switching to it is not meant for us otherwise
+     */
+    public boolean onStartLine(CommandTokenizer line, boolean binaryOffered) {
+        if (!line.nextToken() || !line.tokenEquals("start")) {
+            return false;
+        }
+        boolean startBinary = false;
+        String token = null;
+        int interval = 0;
+        while (line.nextToken()) {
+            if (line.tokenEquals("binary")) {
+                startBinary = true;
+            } else if (line.tokenEquals("resume") && line.nextToken()) {
+                token = line.tokenString();
+            } else if (line.tokenEquals("heartbeat") && line.nextToken()) {
+                try {
+                    interval = line.tokenInt();
+                } catch (NumberFormatException e) {
+                    interval = 0;
+                }
+            }
+        }
+        if (startBinary && !binaryOffered) {
+            return false;
+        }
+        binary = startBinary;
+        resumeToken = token;
+        heartbeatInterval = interval;
+        state = STATE_NORMAL;
+        return true;
+    }
+
+    /**
+     * Handles a text command. Returns false if the verb is unknown, throws
+     * NumberFormatException if a number of the command is malformed.
+     */
+    public boolean onLine(CommandTokenizer line) throws IOException {
+        received++;
+        return commands.dispatch(line);
+    }
+
+    /**
+     * Handles the frame just read by the codec. Returns false if the opcode is unknown.
+     */
+    public boolean onFrame(FrameCodec codec, int opcode) throws IOException {
+        received++;
+        switch (opcode) {
+            case FrameCodec.OP_PLAY:
+                audio.push(codec.readWords());
+                break;
+            case FrameCodec.OP_APPEND:
+                audio.append(codec.readWords());
+                break;
+            case FrameCodec.OP_PLAY_AFTER_CURRENT:
+                audio.playAfterCurrent(codec.readWords());
+                break;
+            case FrameCodec.OP_INTERRUPT:
+                int priority = codec.readVarint();
+                audio.interrupt(priority, codec.readWords());
+                break;
+            case FrameCodec.OP_PRELOAD:
+                audio.preload(codec.readWords());
+                break;
+            case FrameCodec.OP_CLEAR:
+                audio.clear();
+                break;
+            case FrameCodec.OP_IMAGE:
+                ui.showImage(codec.readString());
+                break;
+            case FrameCodec.OP_NAME:
+                ui.showName(codec.readString());
+                break;
+            case FrameCodec.OP_SHUTDOWN:
+                audio.push(new String[] {SHUTDOWN});
+                break;
+            case FrameCodec.OP_PROGRESS:
+                progressEvents = codec.readVarint() != 0;
+                break;
+            case FrameCodec.OP_LOWWATER:
+                audio.setLowWater(codec.readVarint());
+                break;
+            case FrameCodec.OP_PONG:
+                onPong(codec.readVarint());
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private void onPong(int seq) {
+        if (pongListener != null) {
+            pongListener.onPong(seq);
+        }
+    }
+
+    private void registerCommands() {
+        commands.register("play", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.push(line.remainingWords(dictionary, SHUTDOWN));
+            }
+        });
+        commands.register("append", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.append(line.remainingWords(dictionary, SHUTDOWN));
+            }
+        });
+        commands.register("play-after-current", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.playAfterCurrent(line.remainingWords(dictionary, SHUTDOWN));
+            }
+        });
+        commands.register("interrupt", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                int priority = line.nextInt();
+                audio.interrupt(priority, line.remainingWords(dictionary, SHUTDOWN));
+            }
+        });
+        commands.register("preload", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.preload(line.remainingWords(dictionary, SHUTDOWN));
+            }
+        });
+        commands.register("progress", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                progressEvents = line.nextToken() && line.tokenEquals("on");
+            }
+        });
+        commands.register("lowwater", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.setLowWater(line.nextInt());
+            }
+        });
+        commands.register("clear", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.clear();
+            }
+        });
+        commands.register("image", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                if (line.nextToken()) {
+                    ui.showImage(line.tokenString());
+                }
+            }
+        });
+        commands.register("name", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                ui.showName(line.rest());
+            }
+        });
+        commands.register("pong", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                onPong(line.nextInt());
+            }
+        });
+        commands.register("shutdown", new CommandDispatcher.Handler() {
+            @Override
+            public void handle(CommandTokenizer line) {
+                audio.push(new String[] {SHUTDOWN});
+            }
+        });
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Marks the session as over, events are not sent to the server any more.
+     */
+    public void setDead() {
+        state = STATE_DEAD;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns the token to resume the session with, or null if the server can not resume.
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Returns the interval of the heartbeat the server asked for, 0 if none.
+     */
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public boolean isProgressEnabled() {
+        return progressEvents;
+    }
+
+    /**
+     * Returns the number of commands received since start, the server replays the ones after
+     * it when the session is resumed.
+     */
+    public int getReceived() {
+        return received;
+    }
+
+    public int getUnknownCount() {
+        return commands.getUnknownCount();
+    }
+}
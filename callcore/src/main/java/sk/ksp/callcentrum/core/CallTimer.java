@@ -0,0 +1,51 @@
+package sk.ksp.callcentrum.core;
+
+/**
+ * Time of the call shown on the screen, ticks once a second on its own thread.
+ */
+public class CallTimer implements Runnable {
+
+    public interface Listener {
+        // time as mm:ss
+        public void onTick(String time);
+    }
+
+    private final Listener listener;
+    private volatile boolean stop = false;
+    private int seconds = 0;
+
+    public CallTimer(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the time as mm:ss.
+     */
+    public static String format(int seconds) {
+        return String.format("%02d:%02d", seconds / 60, seconds % 60);
+    }
+
+    @Override
+    public void run() {
+        while (!stop) {
+            try {
+                Thread.sleep(1000);
+                tick();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reports the current time and moves on by a second.
+     */
+    public void tick() {
+        listener.onTick(format(seconds));
+        seconds++;
+    }
+
+    public void stopTimer() {
+        stop = true;
+    }
+}
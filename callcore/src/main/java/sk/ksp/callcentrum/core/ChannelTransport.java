@@ -0,0 +1,238 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Non-blocking connection to the server, driven by the thread that reads from it.
+ *
+ * Any thread can send, the data is only put into a bounded queue and the selector is woken up.
+ * The reading thread writes the queue out whenever it waits for data, so the UI, sensor and
+ * audio threads never touch the socket and never wait for each other. If the server stops
+ * reading and the queue fills up, sending fails like a write to a broken socket would.
+ */
+public class ChannelTransport {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int OUTBOUND_CAPACITY = 64;
+
+    private final InetSocketAddress address;
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ArrayBlockingQueue<ByteBuffer> outbound = new ArrayBlockingQueue<ByteBuffer>(OUTBOUND_CAPACITY);
+    private final ByteBuffer inbound = ByteBuffer.allocate(8192);
+    // Partly written head of the queue, only touched by the reading thread
+    private ByteBuffer writing;
+    private volatile boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return inbound.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            count = Math.min(count, inbound.remaining());
+            inbound.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return inbound.remaining();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            byte[] copy = new byte[count];
+            System.arraycopy(buffer, offset, copy, 0, count);
+            send(copy);
+        }
+    };
+
+    public ChannelTransport(InetSocketAddress address) throws IOException {
+        this.address = address;
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            selector = Selector.open();
+            try {
+                channel.connect(address);
+                key = channel.register(selector, SelectionKey.OP_CONNECT);
+                long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+                while (!channel.finishConnect()) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new SocketTimeoutException("Connection to " + address + " timed out");
+                    }
+                    selector.select(left);
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                selector.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        inbound.flip();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Checks without blocking that the server has not closed the connection. Must be called
+     * from the reading thread.
+     */
+    public boolean isAlive() {
+        if (closed) {
+            return false;
+        }
+        if (inbound.hasRemaining()) {
+            return true;
+        }
+        try {
+            inbound.clear();
+            int n = channel.read(inbound);
+            inbound.flip();
+            return n >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Blocking stream of the received data. Only one thread may read, and it does all the
+     * writing of the connection too.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Stream queueing every write as a separate piece of data, see send().
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Queues the data to be written by the reading thread, can be called from any thread.
+     */
+    public void send(byte[] data) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!outbound.offer(ByteBuffer.wrap(data))) {
+            throw new IOException("Outbound queue is full, the server does not read");
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Closes the connection, the reading thread gets an IOException.
+     */
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes without blocking. Returns true if
+     * everything has been written.
+     */
+    private boolean flush() throws IOException {
+        while (true) {
+            if (writing == null) {
+                writing = outbound.poll();
+                if (writing == null) {
+                    return true;
+                }
+            }
+            channel.write(writing);
+            if (writing.hasRemaining()) {
+                return false;
+            }
+            writing = null;
+        }
+    }
+
+    /**
+     * Waits until there is received data, writing the queue in the meantime. Returns false at
+     * the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (!outbound.isEmpty() || writing != null) {
+            flush();
+        }
+        if (inbound.hasRemaining()) {
+            return true;
+        }
+        try {
+            while (true) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                boolean flushed = flush();
+                key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.select();
+                selector.selectedKeys().clear();
+                inbound.clear();
+                int n = channel.read(inbound);
+                inbound.flip();
+                if (n < 0) {
+                    return false;
+                }
+                if (n > 0) {
+                    return true;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        } catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.IOException;
+
+/**
+ * Maps the verb of a command line to its handler in constant time, without creating a String
+ * for the verb. Lines with an unknown verb are counted.
+ */
+public class CommandDispatcher {
+
+    public interface Handler {
+        /**
+         * Handles the command, the tokenizer is positioned at the verb.
+         */
+        public void handle(CommandTokenizer line) throws IOException;
+    }
+
+    // Open addressing table, kept at most half full
+    private String[] verbs = new String[16];
+    private Handler[] handlers = new Handler[16];
+    private int count;
+    private int unknownCount;
+
+    public void register(String verb, Handler handler) {
+        if (2 * (count + 1) > verbs.length) {
+            String[] oldVerbs = verbs;
+            Handler[] oldHandlers = handlers;
+            verbs = new String[2 * oldVerbs.length];
+            handlers = new Handler[2 * oldVerbs.length];
+            count = 0;
+            for (int i = 0; i < oldVerbs.length; i++) {
+                if (oldVerbs[i] != null) {
+                    register(oldVerbs[i], oldHandlers[i]);
+                }
+            }
+        }
+        int slot = getSlot(verb.hashCode());
+        while (verbs[slot] != null && !verbs[slot].equals(verb)) {
+            slot = (slot + 1) & (verbs.length - 1);
+        }
+        if (verbs[slot] == null) {
+            count++;
+        }
+        verbs[slot] = verb;
+        handlers[slot] = handler;
+    }
+
+    /**
+     * Passes the line to the handler of its verb. Returns false if the verb is unknown, empty
+     * lines are ignored.
+     */
+    public boolean dispatch(CommandTokenizer line) throws IOException {
+        if (!line.nextToken()) {
+            return true;
+        }
+        int slot = getSlot(line.tokenHash());
+        String verb;
+        while ((verb = verbs[slot]) != null) {
+            if (line.tokenEquals(verb)) {
+                handlers[slot].handle(line);
+                return true;
+            }
+            slot = (slot + 1) & (verbs.length - 1);
+        }
+        unknownCount++;
+        return false;
+    }
+
+    public int getUnknownCount() {
+        return unknownCount;
+    }
+
+    private int getSlot(int h) {
+        return (h ^ (h >>> 16)) & (verbs.length - 1);
+    }
+}
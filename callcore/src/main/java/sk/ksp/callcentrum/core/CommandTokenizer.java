@@ -0,0 +1,210 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Splits command lines of the text protocol into space separated tokens without allocating.
+ *
+ * The line is kept as bytes in a reusable buffer and the current token is a range of it. The
+ * verbs and words of the protocol are ASCII, so a token hashes and compares equal to its
+ * String. Strings are only created when a handler asks for free text.
+ */
+public class CommandTokenizer {
+
+    public interface Dictionary {
+        /**
+         * Returns the id of the word in the range of the buffer, or -1 if it is unknown.
+         */
+        public int find(byte[] buffer, int offset, int length);
+        public String getName(int id);
+        public int getCount();
+    }
+
+    // Same as the longest frame of FrameCodec
+    private static final int MAX_LINE = 64 * 1024;
+
+    private byte[] buffer = new byte[256];
+    private int length;
+    private int position;
+    private int tokenStart;
+    private int tokenLength;
+
+    /**
+     * Reads the next line from the stream without reading past its end. Returns false at the
+     * end of the stream, a line longer than MAX_LINE is an IOException.
+     */
+    public boolean readLine(InputStream in) throws IOException {
+        length = 0;
+        position = 0;
+        tokenLength = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (length == 0) {
+                    return false;
+                }
+                break;
+            }
+            if (length == buffer.length) {
+                if (length >= MAX_LINE) {
+                    throw new IOException("Line too long");
+                }
+                buffer = Arrays.copyOf(buffer, 2 * length);
+            }
+            buffer[length++] = (byte) b;
+        }
+        if (length > 0 && buffer[length - 1] == '\r') {
+            length--;
+        }
+        return true;
+    }
+
+    public void setLine(String line) {
+        byte[] bytes;
+        try {
+            bytes = line.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        setLine(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copies the line from the bytes, for readers that split the stream themselves.
+     */
+    public void setLine(byte[] bytes, int offset, int count) {
+        if (buffer.length < count) {
+            buffer = new byte[count];
+        }
+        System.arraycopy(bytes, offset, buffer, 0, count);
+        length = count;
+        position = 0;
+        tokenLength = 0;
+    }
+
+    /**
+     * Moves to the next token, returns false if there is none.
+     */
+    public boolean nextToken() {
+        while (position < length && buffer[position] == ' ') {
+            position++;
+        }
+        tokenStart = position;
+        while (position < length && buffer[position] != ' ') {
+            position++;
+        }
+        tokenLength = position - tokenStart;
+        return tokenLength > 0;
+    }
+
+    /**
+     * Returns the same hash as String.hashCode() of the token.
+     */
+    public int tokenHash() {
+        int h = 0;
+        for (int i = tokenStart; i < tokenStart + tokenLength; i++) {
+            h = 31 * h + (buffer[i] & 0xff);
+        }
+        return h;
+    }
+
+    public boolean tokenEquals(String s) {
+        if (s.length() != tokenLength) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (s.charAt(i) != (buffer[tokenStart + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int tokenInt() {
+        int i = tokenStart;
+        int end = tokenStart + tokenLength;
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a number: " + tokenString());
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number: " + tokenString());
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Moves to the next token and parses it as a number.
+     */
+    public int nextInt() {
+        if (!nextToken()) {
+            throw new NumberFormatException("Missing number");
+        }
+        return tokenInt();
+    }
+
+    public String tokenString() {
+        return decode(tokenStart, tokenLength);
+    }
+
+    /**
+     * Returns the rest of the line after the current token.
+     */
+    public String rest() {
+        int start = position < length ? position + 1 : length;
+        position = length;
+        return decode(start, length - start);
+    }
+
+    /**
+     * Returns the remaining tokens as words of the dictionary. Unknown words are kept, so the
+     * queue can report them, and the special word is passed through as it is.
+     */
+    public String[] remainingWords(Dictionary dictionary, String special) {
+        int mark = position;
+        int count = 0;
+        while (nextToken()) {
+            count++;
+        }
+        position = mark;
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            nextToken();
+            int id = dictionary.find(buffer, tokenStart, tokenLength);
+            if (id >= 0) {
+                words[i] = dictionary.getName(id);
+            } else if (tokenEquals(special)) {
+                words[i] = special;
+            } else {
+                words[i] = tokenString();
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Returns the whole line, for logging.
+     */
+    public String line() {
+        return decode(0, length);
+    }
+
+    private String decode(int offset, int count) {
+        try {
+            return new String(buffer, offset, count, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
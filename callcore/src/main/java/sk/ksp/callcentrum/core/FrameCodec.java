@@ -0,0 +1,205 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Binary framing of the server protocol, used instead of text lines when the server answers
+ * the druzinka handshake with "start binary".
+ *
+ * A frame is the varint length of the rest of the frame, a one byte opcode and the payload.
+ * Varints are unsigned, 7 bits per byte, least significant first. Words are sent as a varint
+ * count followed by varint ids: 0 is shutdown, n is word n - 1 of the dictionary. The client
+ * sends the checksum of its dictionary in the handshake, the server only switches to binary if
+ * it has the same one.
+ *
+ * Reading is done into one reusable buffer, only the arrays of words handed to the queue are
+ * allocated. Not thread safe for reading, writes are synchronized.
+ */
+public class FrameCodec {
+
+    // Server to client
+    public static final int OP_PLAY = 0x01;
+    public static final int OP_APPEND = 0x02;
+    public static final int OP_PLAY_AFTER_CURRENT = 0x03;
+    // priority, words
+    public static final int OP_INTERRUPT = 0x04;
+    public static final int OP_PRELOAD = 0x05;
+    public static final int OP_CLEAR = 0x06;
+    // UTF-8 string
+    public static final int OP_IMAGE = 0x07;
+    // UTF-8 string
+    public static final int OP_NAME = 0x08;
+    public static final int OP_SHUTDOWN = 0x09;
+    // 1 on, 0 off
+    public static final int OP_PROGRESS = 0x0a;
+    // milliseconds
+    public static final int OP_LOWWATER = 0x0b;
+    // sequence number of the ping
+    public static final int OP_PONG = 0x0c;
+
+    // Client to server
+    // character of the button
+    public static final int OP_BUTTON = 0x41;
+    public static final int OP_SHAKE = 0x42;
+    public static final int OP_EMPTY = 0x43;
+    // index of the word
+    public static final int OP_PLAYING = 0x44;
+    // remaining milliseconds
+    public static final int OP_LOW_WATER_REACHED = 0x45;
+    // sequence number, smoothed round trip and its variation in milliseconds
+    public static final int OP_PING = 0x46;
+
+    private static final int MAX_FRAME = 64 * 1024;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final CommandTokenizer.Dictionary dictionary;
+
+    private byte[] frame = new byte[256];
+    private int length;
+    private int position;
+    private final byte[] outFrame = new byte[32];
+
+    public FrameCodec(InputStream in, OutputStream out, CommandTokenizer.Dictionary dictionary) {
+        this.in = in;
+        this.out = out;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Reads the next frame and returns its opcode, or -1 at the end of the stream.
+     */
+    public int readFrame() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return -1;
+        }
+        int size = b & 0x7f;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if ((b = in.read()) < 0) {
+                return -1;
+            }
+            size |= (b & 0x7f) << shift;
+            if (shift > 21) {
+                throw new IOException("Bad frame length");
+            }
+        }
+        if (size < 1 || size > MAX_FRAME) {
+            throw new IOException("Bad frame length: " + size);
+        }
+        if (frame.length < size) {
+            frame = new byte[Math.max(size, 2 * frame.length)];
+        }
+        int read = 0;
+        while (read < size) {
+            int n = in.read(frame, read, size - read);
+            if (n < 0) {
+                return -1;
+            }
+            read += n;
+        }
+        length = size;
+        position = 1;
+        return frame[0] & 0xff;
+    }
+
+    /**
+     * Returns the buffer holding the last frame read, starting with the opcode. Valid until
+     * the next readFrame().
+     */
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    public int getFrameLength() {
+        return length;
+    }
+
+    public int readVarint() throws IOException {
+        int value = 0;
+        int b;
+        int shift = 0;
+        do {
+            if (position >= length || shift > 28) {
+                throw new EOFException("Truncated frame");
+            }
+            b = frame[position++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Returns the rest of the frame as a string.
+     */
+    public String readString() throws IOException {
+        String s = new String(frame, position, length - position, "UTF-8");
+        position = length;
+        return s;
+    }
+
+    public String[] readWords() throws IOException {
+        int count = readVarint();
+        // Every id takes at least one byte
+        if (count < 0 || count > length - position) {
+            throw new IOException("Bad word count: " + count);
+        }
+        String[] words = new String[count];
+        for (int i = 0; i < words.length; i++) {
+            int id = readVarint();
+            if (id == 0) {
+                words[i] = CallProtocol.SHUTDOWN;
+            } else if (id <= dictionary.getCount()) {
+                words[i] = dictionary.getName(id - 1);
+            } else {
+                // Not in the dictionary, the queue skips it
+                words[i] = "#" + id;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Writes a frame with no payload, or with one varint if value is not negative.
+     */
+    public synchronized void writeFrame(int opcode, int value) throws IOException {
+        int n = 1;
+        outFrame[n++] = (byte) opcode;
+        if (value >= 0) {
+            n = putVarint(value, n);
+        }
+        send(n);
+    }
+
+    /**
+     * Writes a frame with three varints.
+     */
+    public synchronized void writeFrame(int opcode, int first, int second, int third) throws IOException {
+        int n = 1;
+        outFrame[n++] = (byte) opcode;
+        n = putVarint(first, n);
+        n = putVarint(second, n);
+        n = putVarint(third, n);
+        send(n);
+    }
+
+    private int putVarint(int value, int n) {
+        while ((value & ~0x7f) != 0) {
+            outFrame[n++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        outFrame[n++] = (byte) value;
+        return n;
+    }
+
+    private void send(int n) throws IOException {
+        // Frames written by the client are always shorter than 128 bytes
+        outFrame[0] = (byte) (n - 1);
+        out.write(outFrame, 0, n);
+        out.flush();
+    }
+}
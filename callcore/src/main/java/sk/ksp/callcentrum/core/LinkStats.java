@@ -0,0 +1,68 @@
+package sk.ksp.callcentrum.core;
+
+/**
+ * Round trip statistics of the heartbeat. The round trip is smoothed and its mean deviation is
+ * kept as the jitter, the same way TCP estimates its retransmission timeout (RFC 6298).
+ */
+public class LinkStats {
+
+    private float srtt;
+    private float rttvar;
+    private int minRtt = Integer.MAX_VALUE;
+    private int lastRtt;
+    private int samples;
+    private int lost;
+
+    public synchronized void addSample(int rtt) {
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2f;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        minRtt = Math.min(minRtt, rtt);
+        lastRtt = rtt;
+        samples++;
+    }
+
+    public synchronized void addLoss() {
+        lost++;
+    }
+
+    /**
+     * Returns the smoothed round trip in milliseconds, 0 before the first pong.
+     */
+    public synchronized int getRtt() {
+        return Math.round(srtt);
+    }
+
+    public synchronized int getJitter() {
+        return Math.round(rttvar);
+    }
+
+    public synchronized int getMinRtt() {
+        return samples > 0 ? minRtt : 0;
+    }
+
+    public synchronized int getLastRtt() {
+        return lastRtt;
+    }
+
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Returns the number of pings that were not answered before the next one.
+     */
+    public synchronized int getLost() {
+        return lost;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rtt " + getRtt() + " ms, jitter " + getJitter() + " ms, min " + getMinRtt() + " ms, "
+                + samples + " pongs, " + lost + " lost";
+    }
+}
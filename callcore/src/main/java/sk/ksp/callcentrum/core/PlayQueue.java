@@ -0,0 +1,237 @@
+package sk.ksp.callcentrum.core;
+
+import java.util.List;
+
+/**
+ * The play queue without the audio: the mailbox of the audio thread and the order of the
+ * queued words. MediaQueue in the app adds the players.
+ *
+ * The queue is an actor. The AudioSink methods only post a message through the executor and
+ * return, so the socket reader never waits for a clip to be prepared. The executor hands the
+ * messages to dispatch() on the audio thread one by one, in the order they were posted, and
+ * the on*() methods of the implementations run there.
+ *
+ * Every queued word is an Item with its index among the words queued since the last push and
+ * the priority it was queued with. The items are kept ordered by priority, see insert().
+ */
+public abstract class PlayQueue implements AudioSink {
+
+    /**
+     * Runs the messages of the queue on the audio thread, a Handler in the app.
+     */
+    public interface Executor {
+        public void post(int what, int arg1, int arg2, Object obj);
+        // Drops the pending messages of the kind
+        public void remove(int what);
+        // Drops all pending messages
+        public void removeAll();
+    }
+
+    public static final String SHUTDOWN = CallProtocol.SHUTDOWN;
+
+    public static final int MODE_APPEND = 0;
+    public static final int MODE_NEXT = 1;
+    public static final int MODE_INTERRUPT = 2;
+
+    public static class Item {
+        public final String sound;
+        public final int index;
+        public final int priority;
+
+        public Item(String sound, int index, int priority) {
+            this.sound = sound;
+            this.index = index;
+            this.priority = priority;
+        }
+    }
+
+    public static final int MESSAGE_PUSH = 0;
+    public static final int MESSAGE_CLEAR = 1;
+    public static final int MESSAGE_RELEASE = 2;
+    public static final int MESSAGE_PRELOAD = 3;
+    public static final int MESSAGE_ENQUEUE = 4;
+
+    private final Executor executor;
+
+    // Low water mark in milliseconds, 0 if disabled
+    protected volatile int lowWaterMillis;
+
+    // Index of the next queued word, only used on the audio thread
+    private int nextIndex;
+
+    // Records the commands as the audio thread takes them, null if not tracing
+    private volatile SessionTrace trace;
+
+    protected PlayQueue(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns where items of the priority go among the queued ones. They are kept ordered by
+     * priority, front puts the items ahead of the queued ones with the same priority.
+     */
+    public static int getInsertionPoint(List<? extends Item> queued, int priority, boolean front) {
+        int i = 0;
+        for (Item item : queued) {
+            if (item.priority < priority || (front && item.priority == priority)) {
+                return i;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Puts the items, all of the same priority, among the queued ones in the mode. playing is
+     * the word that is playing, it is not among the queued ones, or null.
+     *
+     * Appended items go last, items played after the current word go ahead of the queued ones
+     * with the same priority and interrupting items after them. Interrupting items with a
+     * higher priority than the playing word cut it: they go first and the cut word goes back
+     * ahead of the queued ones with its priority, to be played again. Returns true then.
+     */
+    public static <T extends Item> boolean insert(List<T> queued, List<? extends T> items, int mode, T playing) {
+        int priority = items.get(0).priority;
+        if (mode == MODE_INTERRUPT && playing != null && priority > playing.priority) {
+            queued.add(getInsertionPoint(queued, playing.priority, true), playing);
+            queued.addAll(0, items);
+            return true;
+        }
+        int at;
+        if (mode == MODE_APPEND) {
+            at = queued.size();
+        } else if (mode == MODE_NEXT) {
+            at = getInsertionPoint(queued, priority, true);
+        } else {
+            at = getInsertionPoint(queued, priority, false);
+        }
+        queued.addAll(at, items);
+        return false;
+    }
+
+    public void setTrace(SessionTrace trace) {
+        this.trace = trace;
+    }
+
+    @Override
+    public void push(String[] sounds) {
+        // Words that did not start yet would be cleared by this sentence anyway
+        dropPending();
+        executor.post(MESSAGE_PUSH, 0, 0, sounds);
+    }
+
+    @Override
+    public void append(String[] sounds) {
+        executor.post(MESSAGE_ENQUEUE, MODE_APPEND, 0, sounds);
+    }
+
+    @Override
+    public void playAfterCurrent(String[] sounds) {
+        executor.post(MESSAGE_ENQUEUE, MODE_NEXT, 0, sounds);
+    }
+
+    /**
+     * Cuts the word that is playing if its priority is lower, it is played again after the
+     * interruption. Otherwise the words are queued ahead of those with a lower priority.
+     */
+    @Override
+    public void interrupt(int priority, String[] sounds) {
+        executor.post(MESSAGE_ENQUEUE, MODE_INTERRUPT, priority, sounds);
+    }
+
+    /**
+     * Gets the words of an upcoming sentence ready while the current one is still playing.
+     */
+    @Override
+    public void preload(String[] sounds) {
+        executor.post(MESSAGE_PRELOAD, 0, 0, sounds);
+    }
+
+    @Override
+    public void setLowWater(int millis) {
+        lowWaterMillis = millis;
+    }
+
+    @Override
+    public void clear() {
+        dropPending();
+        executor.post(MESSAGE_CLEAR, 0, 0, null);
+    }
+
+    /**
+     * Drops the pending words and clears, the next push or clear clears anyway. A reader
+     * faster than the audio thread leaves at most one of them pending.
+     */
+    private void dropPending() {
+        executor.remove(MESSAGE_PUSH);
+        executor.remove(MESSAGE_ENQUEUE);
+        executor.remove(MESSAGE_CLEAR);
+    }
+
+    public void release() {
+        executor.removeAll();
+        executor.post(MESSAGE_RELEASE, 0, 0, null);
+    }
+
+    /**
+     * Handles a message on the audio thread.
+     */
+    public void dispatch(int what, int arg1, int arg2, Object obj) {
+        SessionTrace sessionTrace = trace;
+        if (sessionTrace != null) {
+            trace(sessionTrace, what, arg1, obj);
+        }
+        switch (what) {
+            case MESSAGE_PUSH:
+                onClear();
+                nextIndex = 0;
+                onEnqueue(toItems((String[]) obj, 0), MODE_APPEND);
+                break;
+            case MESSAGE_ENQUEUE:
+                onEnqueue(toItems((String[]) obj, arg2), arg1);
+                break;
+            case MESSAGE_PRELOAD:
+                onPreload((String[]) obj);
+                break;
+            case MESSAGE_CLEAR:
+                onClear();
+                break;
+            case MESSAGE_RELEASE:
+                onRelease();
+                break;
+        }
+    }
+
+    private void trace(SessionTrace sessionTrace, int what, int arg1, Object obj) {
+        switch (what) {
+            case MESSAGE_PUSH:
+                sessionTrace.record(SessionTrace.QUEUE, "push " + ((String[]) obj).length);
+                break;
+            case MESSAGE_ENQUEUE:
+                sessionTrace.record(SessionTrace.QUEUE, "enqueue " + arg1 + " " + ((String[]) obj).length);
+                break;
+            case MESSAGE_PRELOAD:
+                sessionTrace.record(SessionTrace.QUEUE, "preload " + ((String[]) obj).length);
+                break;
+            case MESSAGE_CLEAR:
+                sessionTrace.record(SessionTrace.QUEUE, "clear");
+                break;
+        }
+    }
+
+    private Item[] toItems(String[] sounds, int priority) {
+        Item[] items = new Item[sounds.length];
+        for (int i = 0; i < sounds.length; i++) {
+            items[i] = new Item(sounds[i], nextIndex++, priority);
+        }
+        return items;
+    }
+
+    protected abstract void onEnqueue(Item[] items, int mode);
+
+    protected abstract void onPreload(String[] sounds);
+
+    protected abstract void onClear();
+
+    protected abstract void onRelease();
+}
@@ -0,0 +1,193 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Finds game servers on the local network by UDP broadcast.
+ *
+ * The client broadcasts "druzinka-discover <nonce>" to the port a few times, a server answers
+ * every probe with "druzinka-server <nonce> <tcp port>". Each probe has its own nonce, so the
+ * round trip of every answer is known and the servers are ranked by the fastest one.
+ */
+public class ServerDiscovery {
+
+    public static final int PORT = 1234;
+
+    private static final int PROBES = 3;
+    private static final int PROBE_INTERVAL = 100;
+    // How long answers are collected after the first probe
+    private static final int WINDOW = 400;
+
+    public static class Server {
+        public final InetAddress address;
+        public final int port;
+        public final int rtt;
+
+        Server(InetAddress address, int port, int rtt) {
+            this.address = address;
+            this.port = port;
+            this.rtt = rtt;
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress() + ":" + port + " (" + rtt + " ms)";
+        }
+    }
+
+    private ServerDiscovery() {
+    }
+
+    /**
+     * Returns the servers that answered, the fastest first. Blocks for a bit under half
+     * a second.
+     */
+    public static List<Server> discover() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setBroadcast(true);
+            List<InetAddress> targets = getBroadcastAddresses();
+            int base = new Random().nextInt(Integer.MAX_VALUE - PROBES);
+            long[] sent = new long[PROBES];
+            Map<String, Server> servers = new HashMap<String, Server>();
+            byte[] buffer = new byte[256];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+
+            long start = now();
+            int probe = 0;
+            while (true) {
+                long now = now();
+                if (probe < PROBES && now >= start + probe * PROBE_INTERVAL) {
+                    byte[] request = ("druzinka-discover " + (base + probe) + "\n").getBytes("UTF-8");
+                    for (InetAddress target : targets) {
+                        try {
+                            socket.send(new DatagramPacket(request, request.length, target, PORT));
+                        } catch (IOException e) {
+                            // Some interfaces do not allow broadcasts, the others are still tried
+                        }
+                    }
+                    sent[probe++] = now;
+                    continue;
+                }
+                long until = probe < PROBES ? start + probe * PROBE_INTERVAL : start + WINDOW;
+                if (until <= now) {
+                    break;
+                }
+                socket.setSoTimeout((int) (until - now));
+                try {
+                    reply.setLength(buffer.length);
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                long received = now();
+                String[] answer = new String(buffer, 0, reply.getLength(), "UTF-8").trim().split(" ");
+                try {
+                    if (answer.length != 3 || !"druzinka-server".equals(answer[0])) {
+                        continue;
+                    }
+                    int n = Integer.parseInt(answer[1]) - base;
+                    int port = Integer.parseInt(answer[2]);
+                    if (n < 0 || n >= probe) {
+                        continue;
+                    }
+                    Server server = new Server(reply.getAddress(), port, (int) (received - sent[n]));
+                    String key = server.address.getHostAddress() + ":" + port;
+                    Server known = servers.get(key);
+                    if (known == null || known.rtt > server.rtt) {
+                        servers.put(key, server);
+                    }
+                } catch (NumberFormatException e) {
+                }
+            }
+
+            List<Server> ranked = new ArrayList<Server>(servers.values());
+            Collections.sort(ranked, new Comparator<Server>() {
+                @Override
+                public int compare(Server a, Server b) {
+                    return a.rtt - b.rtt;
+                }
+            });
+            return ranked;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static List<InetAddress> getBroadcastAddresses() throws SocketException {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+            for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                if (address.getBroadcast() != null && !addresses.contains(address.getBroadcast())) {
+                    addresses.add(address.getBroadcast());
+                }
+            }
+        }
+        try {
+            addresses.add(InetAddress.getByName("255.255.255.255"));
+        } catch (IOException e) {
+        }
+        return addresses;
+    }
+
+    /**
+     * Answers the probes for a server listening on the TCP port, until it is closed.
+     */
+    public static class Responder implements Runnable {
+
+        private final DatagramSocket socket;
+        private final int tcpPort;
+
+        public Responder(int tcpPort) throws SocketException {
+            this.socket = new DatagramSocket(PORT);
+            this.tcpPort = tcpPort;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[256];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    String[] request = new String(buffer, 0, packet.getLength(), "UTF-8").trim().split(" ");
+                    if (request.length == 2 && "druzinka-discover".equals(request[0])) {
+                        byte[] answer = ("druzinka-server " + request[1] + " " + tcpPort + "\n").getBytes("UTF-8");
+                        socket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+                    }
+                } catch (IOException e) {
+                    // A bad packet, or closed
+                }
+            }
+        }
+
+        public void close() {
+            socket.close();
+        }
+    }
+}
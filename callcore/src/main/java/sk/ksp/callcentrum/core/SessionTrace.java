@@ -0,0 +1,271 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timestamped binary trace of a call, for finding out afterwards where the time went.
+ *
+ * The trace starts with the magic, the version and the wall clock time of the start in
+ * milliseconds. Every record is a type byte, the varint microseconds since the previous
+ * record, the varint length of the data and the data: lines without the newline, frames
+ * starting with the opcode, or a short text for the other types.
+ *
+ * Recording may be called from any thread and never waits for the file: the records are
+ * timestamped and handed through a bounded queue to a writer thread. When the writer falls
+ * behind the records are dropped and counted, a failed write stops the recording, the call
+ * goes on without it either way.
+ */
+public class SessionTrace {
+
+    public static final int MAGIC = 0x43435452;
+    public static final int VERSION = 1;
+
+    // Line from the server
+    public static final int IN_LINE = 1;
+    // Frame from the server
+    public static final int IN_FRAME = 2;
+    // Line to the server, events in the binary protocol are recorded as their text form
+    public static final int OUT_LINE = 3;
+    // State change of the play queue
+    public static final int QUEUE = 4;
+    // Connection events: connected, lost, resumed
+    public static final int LINK = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Records waiting for the writer
+    private static final int MAX_PENDING = 1024;
+
+    private static class Record {
+        final int type;
+        final long time;
+        final byte[] data;
+
+        Record(int type, long time, byte[] data) {
+            this.type = type;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    // Ends the writer
+    private static final Record END = new Record(0, 0, null);
+
+    private final BlockingQueue<Record> pending = new ArrayBlockingQueue<Record>(MAX_PENDING);
+    private final Thread writer;
+    private final AtomicInteger dropped = new AtomicInteger();
+    private volatile boolean closed;
+
+    // Only used by the writer thread
+    private DataOutputStream out;
+    private long last = System.nanoTime();
+
+    public SessionTrace(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeShort(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "SessionTrace");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void record(int type, String text) {
+        if (closed) {
+            return;
+        }
+        enqueue(type, text.getBytes(UTF8));
+    }
+
+    public void record(int type, byte[] data, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        enqueue(type, copy);
+    }
+
+    private void enqueue(int type, byte[] data) {
+        if (!pending.offer(new Record(type, System.nanoTime(), data))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Records dropped because the writer fell behind
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the recording and waits for the writer to write out the pending records.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            pending.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Record record = pending.take();
+                if (record == END) {
+                    break;
+                }
+                if (out == null) {
+                    // Failed, keep draining until closed
+                    continue;
+                }
+                try {
+                    out.write(record.type);
+                    // Records of two threads may be queued out of order by a few microseconds
+                    writeVarint(Math.max(0, record.time - last) / 1000);
+                    writeVarint(record.data.length);
+                    out.write(record.data);
+                    last = Math.max(last, record.time);
+                    if (pending.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    closeOut();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed without the rest of the records
+        }
+        closeOut();
+    }
+
+    private void closeOut() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Lost the end of the trace
+        }
+        out = null;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value | 0x80) & 0xff);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads the records of a trace one by one.
+     */
+    public static class Reader {
+
+        private final DataInputStream in;
+        private final long startTime;
+        private int type;
+        private long time;
+        private byte[] data = new byte[256];
+        private int length;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (this.in.readInt() != MAGIC || this.in.readShort() != VERSION) {
+                throw new IOException("Not a session trace");
+            }
+            startTime = this.in.readLong();
+        }
+
+        /**
+         * Reads the next record, returns false at the end of the trace. A trace cut short by
+         * the end of the call ends at its last complete record.
+         */
+        public boolean next() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            try {
+                type = b;
+                time += readVarint();
+                length = (int) readVarint();
+                if (data.length < length) {
+                    data = new byte[Math.max(length, 2 * data.length)];
+                }
+                in.readFully(data, 0, length);
+            } catch (EOFException e) {
+                return false;
+            }
+            return true;
+        }
+
+        // Wall clock time of the start, in milliseconds
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        // Microseconds since the start
+        public long getTime() {
+            return time;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getText() {
+            return new String(data, 0, length, UTF8);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            int b;
+            int shift = 0;
+            do {
+                if (shift > 56) {
+                    throw new IOException("Bad varint");
+                }
+                b = in.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
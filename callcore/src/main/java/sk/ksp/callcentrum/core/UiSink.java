@@ -0,0 +1,10 @@
+package sk.ksp.callcentrum.core;
+
+/**
+ * Shows what the server sends on the call screen. The methods are called from the thread
+ * reading the server.
+ */
+public interface UiSink {
+    public void showImage(String image);
+    public void showName(String name);
+}
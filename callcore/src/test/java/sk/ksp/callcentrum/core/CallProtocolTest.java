@@ -0,0 +1,138 @@
+package sk.ksp.callcentrum.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CallProtocolTest {
+
+    private RecordingSink sink;
+    private CallProtocol protocol;
+    private final CommandTokenizer line = new CommandTokenizer();
+
+    @Before
+    public void setUp() {
+        sink = new RecordingSink();
+        protocol = new CallProtocol(sink, sink, new Words("a__0", "b__0"));
+    }
+
+    private boolean start(String s, boolean binaryOffered) {
+        line.setLine(s);
+        return protocol.onStartLine(line, binaryOffered);
+    }
+
+    private boolean command(String s) throws IOException {
+        line.setLine(s);
+        return protocol.onLine(line);
+    }
+
+    @Test
+    public void offersBinaryWithTheChecksum() {
+        assertEquals("druzinka 1 123 binary ff", CallProtocol.handshake("1", "123", 255));
+        assertEquals("druzinka 1 123", CallProtocol.handshake("1", "123", -1));
+    }
+
+    @Test
+    public void readsTheStartLine() {
+        assertFalse(start("welcome", true));
+        assertEquals(CallProtocol.STATE_UNINITIALIZED, protocol.getState());
+        assertTrue(start("start binary resume tok3n heartbeat 5000 future", true));
+        assertEquals(CallProtocol.STATE_NORMAL, protocol.getState());
+        assertTrue(protocol.isBinary());
+        assertEquals("tok3n", protocol.getResumeToken());
+        assertEquals(5000, protocol.getHeartbeatInterval());
+    }
+
+    @Test
+    public void ignoresABinaryStartNotOffered() {
+        assertFalse(start("start binary", false));
+        assertEquals(CallProtocol.STATE_UNINITIALIZED, protocol.getState());
+    }
+
+    @Test
+    public void startsWithoutOptions() {
+        assertTrue(start("start heartbeat soon", true));
+        assertFalse(protocol.isBinary());
+        assertNull(protocol.getResumeToken());
+        assertEquals(0, protocol.getHeartbeatInterval());
+    }
+
+    @Test
+    public void dispatchesTextCommands() throws IOException {
+        assertTrue(command("play a__0 b__0"));
+        assertTrue(command("append b__0"));
+        assertTrue(command("play-after-current a__0"));
+        assertTrue(command("interrupt 3 b__0"));
+        assertTrue(command("preload a__0"));
+        assertTrue(command("clear"));
+        assertTrue(command("lowwater 800"));
+        assertTrue(command("image old"));
+        assertTrue(command("name Agent 007"));
+        assertTrue(command("shutdown"));
+        assertEquals(Arrays.asList("push [a__0, b__0]", "append [b__0]", "next [a__0]",
+                "interrupt 3 [b__0]", "preload [a__0]", "clear", "lowwater 800", "image old",
+                "name Agent 007", "push [shutdown]"), sink.events);
+        assertEquals(10, protocol.getReceived());
+    }
+
+    @Test
+    public void countsUnknownCommands() throws IOException {
+        assertFalse(command("dance a__0"));
+        assertEquals(1, protocol.getUnknownCount());
+        assertTrue(sink.events.isEmpty());
+        // Still a command the server sent, resume counts it
+        assertEquals(1, protocol.getReceived());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsBadPriorities() throws IOException {
+        command("interrupt high a__0");
+    }
+
+    @Test
+    public void switchesProgress() throws IOException {
+        command("progress on");
+        assertTrue(protocol.isProgressEnabled());
+        command("progress off");
+        assertFalse(protocol.isProgressEnabled());
+    }
+
+    @Test
+    public void passesPongs() throws IOException {
+        final int[] pong = {-1};
+        protocol.setPongListener(new CallProtocol.PongListener() {
+            @Override
+            public void onPong(int seq) {
+                pong[0] = seq;
+            }
+        });
+        command("pong 17");
+        assertEquals(17, pong[0]);
+    }
+
+    @Test
+    public void dispatchesFrames() throws IOException {
+        byte[] frames = {
+                4, FrameCodec.OP_INTERRUPT, 2, 1, 1,
+                1, FrameCodec.OP_SHUTDOWN,
+                2, FrameCodec.OP_PROGRESS, 1,
+                1, 0x7f,
+        };
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(frames), null, new Words("a__0", "b__0"));
+        assertTrue(protocol.onFrame(codec, codec.readFrame()));
+        assertTrue(protocol.onFrame(codec, codec.readFrame()));
+        assertTrue(protocol.onFrame(codec, codec.readFrame()));
+        assertFalse(protocol.onFrame(codec, codec.readFrame()));
+        assertEquals(Arrays.asList("interrupt 2 [a__0]", "push [shutdown]"), sink.events);
+        assertTrue(protocol.isProgressEnabled());
+        assertEquals(4, protocol.getReceived());
+    }
+}
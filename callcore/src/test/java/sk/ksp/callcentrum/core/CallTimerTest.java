@@ -0,0 +1,33 @@
+package sk.ksp.callcentrum.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CallTimerTest {
+
+    @Test
+    public void formatsMinutesAndSeconds() {
+        assertEquals("00:00", CallTimer.format(0));
+        assertEquals("01:05", CallTimer.format(65));
+        assertEquals("90:00", CallTimer.format(90 * 60));
+    }
+
+    @Test
+    public void ticksFromZero() {
+        final List<String> times = new ArrayList<String>();
+        CallTimer timer = new CallTimer(new CallTimer.Listener() {
+            @Override
+            public void onTick(String time) {
+                times.add(time);
+            }
+        });
+        timer.tick();
+        timer.tick();
+        assertEquals(Arrays.asList("00:00", "00:01"), times);
+    }
+}
@@ -0,0 +1,98 @@
+package sk.ksp.callcentrum.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandTokenizerTest {
+
+    private static ByteArrayInputStream stream(String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void splitsOnSpaces() {
+        CommandTokenizer line = new CommandTokenizer();
+        line.setLine("  play  a__0 b__0 ");
+        assertTrue(line.nextToken());
+        assertTrue(line.tokenEquals("play"));
+        assertEquals("play".hashCode(), line.tokenHash());
+        assertTrue(line.nextToken());
+        assertEquals("a__0", line.tokenString());
+        assertTrue(line.nextToken());
+        assertFalse(line.tokenEquals("b__"));
+        assertFalse(line.nextToken());
+    }
+
+    @Test
+    public void readsOneLineAtATime() throws IOException {
+        ByteArrayInputStream in = stream("start binary\r\nclear\nname A");
+        CommandTokenizer line = new CommandTokenizer();
+        assertTrue(line.readLine(in));
+        assertEquals("start binary", line.line());
+        // The rest stays in the stream for the frames
+        assertEquals('c', in.read());
+        assertTrue(line.readLine(in));
+        assertEquals("lear", line.line());
+        assertTrue(line.readLine(in));
+        assertEquals("name A", line.line());
+        assertFalse(line.readLine(in));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEndlessLines() throws IOException {
+        byte[] bytes = new byte[128 * 1024];
+        Arrays.fill(bytes, (byte) 'a');
+        new CommandTokenizer().readLine(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void parsesNumbers() {
+        CommandTokenizer line = new CommandTokenizer();
+        line.setLine("interrupt -12 800");
+        line.nextToken();
+        assertEquals(-12, line.nextInt());
+        assertEquals(800, line.nextInt());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsBadNumbers() {
+        CommandTokenizer line = new CommandTokenizer();
+        line.setLine("lowwater 8x");
+        line.nextToken();
+        line.nextInt();
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMissingNumbers() {
+        CommandTokenizer line = new CommandTokenizer();
+        line.setLine("lowwater");
+        line.nextToken();
+        line.nextInt();
+    }
+
+    @Test
+    public void returnsTheRestOfTheLine() {
+        CommandTokenizer line = new CommandTokenizer();
+        line.setLine("name Agent  007");
+        line.nextToken();
+        assertEquals("Agent  007", line.rest());
+        assertFalse(line.nextToken());
+    }
+
+    @Test
+    public void looksUpWords() {
+        CommandTokenizer line = new CommandTokenizer();
+        line.setLine("play a__0 shutdown nope__1 b__0");
+        line.nextToken();
+        String[] words = line.remainingWords(new Words("a__0", "b__0"), "shutdown");
+        assertArrayEquals(new String[] {"a__0", "shutdown", "nope__1", "b__0"}, words);
+    }
+}
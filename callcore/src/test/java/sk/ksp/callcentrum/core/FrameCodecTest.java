@@ -0,0 +1,94 @@
+package sk.ksp.callcentrum.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameCodecTest {
+
+    private static FrameCodec reader(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return new FrameCodec(new ByteArrayInputStream(data), null, new Words("a__0", "b__0"));
+    }
+
+    @Test
+    public void readsWhatItWrites() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec writer = new FrameCodec(null, out, null);
+        writer.writeFrame(FrameCodec.OP_SHAKE, -1);
+        writer.writeFrame(FrameCodec.OP_PLAYING, 300);
+        writer.writeFrame(FrameCodec.OP_PING, 1, 70000, 0);
+
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(out.toByteArray()), null, null);
+        assertEquals(FrameCodec.OP_SHAKE, reader.readFrame());
+        assertEquals(1, reader.getFrameLength());
+        assertEquals(FrameCodec.OP_PLAYING, reader.readFrame());
+        assertEquals(300, reader.readVarint());
+        assertEquals(FrameCodec.OP_PING, reader.readFrame());
+        assertEquals(1, reader.readVarint());
+        assertEquals(70000, reader.readVarint());
+        assertEquals(0, reader.readVarint());
+        assertEquals(-1, reader.readFrame());
+    }
+
+    @Test
+    public void mapsWordIds() throws IOException {
+        FrameCodec codec = reader(5, FrameCodec.OP_PLAY, 3, 2, 0, 9);
+        assertEquals(FrameCodec.OP_PLAY, codec.readFrame());
+        assertArrayEquals(new String[] {"b__0", CallProtocol.SHUTDOWN, "#9"}, codec.readWords());
+    }
+
+    @Test
+    public void readsStrings() throws IOException {
+        FrameCodec codec = reader(4, FrameCodec.OP_IMAGE, 'o', 'l', 'd');
+        codec.readFrame();
+        assertEquals("old", codec.readString());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeWordCounts() throws IOException {
+        FrameCodec codec = reader(6, FrameCodec.OP_PLAY, 0xff, 0xff, 0xff, 0xff, 0x0f);
+        codec.readFrame();
+        codec.readWords();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWordCountsLongerThanTheFrame() throws IOException {
+        FrameCodec codec = reader(5, FrameCodec.OP_PLAY, 0x80, 0x80, 0x80, 0x40);
+        codec.readFrame();
+        codec.readWords();
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedFrames() throws IOException {
+        FrameCodec codec = reader(2, FrameCodec.OP_LOWWATER, 0x80);
+        codec.readFrame();
+        codec.readVarint();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyFrames() throws IOException {
+        reader(0).readFrame();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeFrames() throws IOException {
+        reader(0x80, 0x80, 0x80, 0x01, FrameCodec.OP_PLAY).readFrame();
+    }
+
+    @Test
+    public void endsAtTheEndOfTheStream() throws IOException {
+        assertEquals(-1, reader().readFrame());
+        // Cut in the middle of the frame
+        assertEquals(-1, reader(3, FrameCodec.OP_PLAY, 1).readFrame());
+    }
+}
@@ -0,0 +1,242 @@
+package sk.ksp.callcentrum.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlayQueueTest {
+
+    /**
+     * Keeps the messages until run() hands them to the queue.
+     */
+    static class ManualExecutor implements PlayQueue.Executor {
+
+        final LinkedList<Object[]> pending = new LinkedList<Object[]>();
+        PlayQueue queue;
+
+        @Override
+        public void post(int what, int arg1, int arg2, Object obj) {
+            pending.add(new Object[] {what, arg1, arg2, obj});
+        }
+
+        @Override
+        public void remove(int what) {
+            Iterator<Object[]> it = pending.iterator();
+            while (it.hasNext()) {
+                if ((Integer) it.next()[0] == what) {
+                    it.remove();
+                }
+            }
+        }
+
+        @Override
+        public void removeAll() {
+            pending.clear();
+        }
+
+        void run() {
+            while (!pending.isEmpty()) {
+                Object[] m = pending.removeFirst();
+                queue.dispatch((Integer) m[0], (Integer) m[1], (Integer) m[2], m[3]);
+            }
+        }
+    }
+
+    /**
+     * Queues the items in a list, the way the players do.
+     */
+    static class ListQueue extends PlayQueue {
+
+        final List<String> calls = new ArrayList<String>();
+        final List<Item> queued = new ArrayList<Item>();
+        Item playing;
+
+        ListQueue(Executor executor) {
+            super(executor);
+        }
+
+        @Override
+        protected void onEnqueue(Item[] items, int mode) {
+            calls.add("enqueue " + mode + " " + describe(Arrays.asList(items)));
+            insert(queued, Arrays.asList(items), mode, playing);
+        }
+
+        @Override
+        protected void onPreload(String[] sounds) {
+            calls.add("preload " + Arrays.toString(sounds));
+        }
+
+        @Override
+        protected void onClear() {
+            calls.add("clear");
+            queued.clear();
+            playing = null;
+        }
+
+        @Override
+        protected void onRelease() {
+            calls.add("release");
+        }
+    }
+
+    private ManualExecutor executor;
+    private ListQueue queue;
+
+    @Before
+    public void setUp() {
+        executor = new ManualExecutor();
+        queue = new ListQueue(executor);
+        executor.queue = queue;
+    }
+
+    private static List<PlayQueue.Item> items(int priority, String... sounds) {
+        List<PlayQueue.Item> items = new ArrayList<PlayQueue.Item>();
+        for (String sound : sounds) {
+            items.add(new PlayQueue.Item(sound, 0, priority));
+        }
+        return items;
+    }
+
+    // sound:index/priority of every item
+    private static String describe(List<PlayQueue.Item> items) {
+        StringBuilder s = new StringBuilder();
+        for (PlayQueue.Item item : items) {
+            if (s.length() > 0) {
+                s.append(' ');
+            }
+            s.append(item.sound).append(':').append(item.index).append('/').append(item.priority);
+        }
+        return s.toString();
+    }
+
+    private static String sounds(List<PlayQueue.Item> items) {
+        StringBuilder s = new StringBuilder();
+        for (PlayQueue.Item item : items) {
+            s.append(item.sound);
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void keepsItemsOrderedByPriority() {
+        List<PlayQueue.Item> queued = items(2, "a", "b");
+        queued.addAll(items(0, "c"));
+        assertEquals(0, PlayQueue.getInsertionPoint(queued, 2, true));
+        assertEquals(2, PlayQueue.getInsertionPoint(queued, 2, false));
+        assertEquals(2, PlayQueue.getInsertionPoint(queued, 1, true));
+        assertEquals(3, PlayQueue.getInsertionPoint(queued, 0, false));
+    }
+
+    @Test
+    public void appendsLast() {
+        List<PlayQueue.Item> queued = items(2, "a");
+        queued.addAll(items(0, "b"));
+        assertFalse(PlayQueue.insert(queued, items(5, "x", "y"), PlayQueue.MODE_APPEND, null));
+        assertEquals("abxy", sounds(queued));
+    }
+
+    @Test
+    public void playsNextAheadOfTheSamePriority() {
+        List<PlayQueue.Item> queued = items(1, "a", "b");
+        queued.addAll(items(0, "c"));
+        assertFalse(PlayQueue.insert(queued, items(1, "x"), PlayQueue.MODE_NEXT, null));
+        assertEquals("xabc", sounds(queued));
+        assertFalse(PlayQueue.insert(queued, items(0, "y"), PlayQueue.MODE_NEXT, null));
+        assertEquals("xabyc", sounds(queued));
+    }
+
+    @Test
+    public void interruptsAfterTheSamePriority() {
+        List<PlayQueue.Item> queued = items(1, "a", "b");
+        queued.addAll(items(0, "c"));
+        PlayQueue.Item playing = items(1, "p").get(0);
+        assertFalse(PlayQueue.insert(queued, items(1, "x"), PlayQueue.MODE_INTERRUPT, playing));
+        assertEquals("abxc", sounds(queued));
+    }
+
+    @Test
+    public void cutsALowerPriorityWord() {
+        List<PlayQueue.Item> queued = items(1, "a");
+        queued.addAll(items(0, "b"));
+        PlayQueue.Item playing = items(0, "p").get(0);
+        assertTrue(PlayQueue.insert(queued, items(3, "x", "y"), PlayQueue.MODE_INTERRUPT, playing));
+        // The cut word plays again ahead of the other words of its priority
+        assertEquals("xyapb", sounds(queued));
+    }
+
+    @Test
+    public void doesNotCutWhenNothingPlays() {
+        List<PlayQueue.Item> queued = items(0, "a");
+        assertFalse(PlayQueue.insert(queued, items(3, "x"), PlayQueue.MODE_INTERRUPT, null));
+        assertEquals("xa", sounds(queued));
+    }
+
+    @Test
+    public void numbersTheWordsSinceThePush() {
+        queue.push(new String[] {"a", "b"});
+        executor.run();
+        queue.append(new String[] {"c"});
+        queue.interrupt(4, new String[] {"d"});
+        executor.run();
+        assertEquals(Arrays.asList("clear", "enqueue 0 a:0/0 b:1/0", "enqueue 0 c:2/0",
+                "enqueue 2 d:3/4"), queue.calls);
+        queue.calls.clear();
+        queue.push(new String[] {"e"});
+        executor.run();
+        assertEquals(Arrays.asList("clear", "enqueue 0 e:0/0"), queue.calls);
+    }
+
+    @Test
+    public void pushDropsThePendingWords() {
+        queue.append(new String[] {"a"});
+        queue.preload(new String[] {"p"});
+        queue.push(new String[] {"b"});
+        queue.playAfterCurrent(new String[] {"c"});
+        queue.push(new String[] {"d"});
+        executor.run();
+        assertEquals(Arrays.asList("preload [p]", "clear", "enqueue 0 d:0/0"), queue.calls);
+    }
+
+    @Test
+    public void clearDropsThePendingWords() {
+        queue.push(new String[] {"a"});
+        queue.append(new String[] {"b"});
+        queue.clear();
+        queue.append(new String[] {"c"});
+        executor.run();
+        assertEquals(Arrays.asList("clear", "enqueue 0 c:0/0"), queue.calls);
+        assertEquals("c", sounds(queue.queued));
+    }
+
+    @Test
+    public void pendingClearsCollapse() {
+        for (int i = 0; i < 100; i++) {
+            queue.push(new String[] {"a"});
+            queue.clear();
+        }
+        assertEquals(1, executor.pending.size());
+        queue.preload(new String[] {"p"});
+        queue.clear();
+        queue.push(new String[] {"b"});
+        executor.run();
+        assertEquals(Arrays.asList("preload [p]", "clear", "enqueue 0 b:0/0"), queue.calls);
+    }
+
+    @Test
+    public void releaseDropsEverything() {
+        queue.push(new String[] {"a"});
+        queue.preload(new String[] {"b"});
+        queue.release();
+        executor.run();
+        assertEquals(Arrays.asList("release"), queue.calls);
+    }
+}
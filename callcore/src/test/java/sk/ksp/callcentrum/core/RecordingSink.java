@@ -0,0 +1,58 @@
+package sk.ksp.callcentrum.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps what CallProtocol sent to the sinks as text, "push [a, b]" for example.
+ */
+class RecordingSink implements AudioSink, UiSink {
+
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void push(String[] words) {
+        events.add("push " + Arrays.toString(words));
+    }
+
+    @Override
+    public void append(String[] words) {
+        events.add("append " + Arrays.toString(words));
+    }
+
+    @Override
+    public void playAfterCurrent(String[] words) {
+        events.add("next " + Arrays.toString(words));
+    }
+
+    @Override
+    public void interrupt(int priority, String[] words) {
+        events.add("interrupt " + priority + " " + Arrays.toString(words));
+    }
+
+    @Override
+    public void preload(String[] words) {
+        events.add("preload " + Arrays.toString(words));
+    }
+
+    @Override
+    public void clear() {
+        events.add("clear");
+    }
+
+    @Override
+    public void setLowWater(int millis) {
+        events.add("lowwater " + millis);
+    }
+
+    @Override
+    public void showImage(String image) {
+        events.add("image " + image);
+    }
+
+    @Override
+    public void showName(String name) {
+        events.add("name " + name);
+    }
+}
@@ -0,0 +1,42 @@
+package sk.ksp.callcentrum.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTraceTest {
+
+    @Test
+    public void readsBackTheRecordsAfterClose() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionTrace trace = new SessionTrace(bytes);
+        trace.record(SessionTrace.OUT_LINE, "druzinka a 1");
+        byte[] frame = {0, FrameCodec.OP_CLEAR, 0};
+        trace.record(SessionTrace.IN_FRAME, frame, 1, 1);
+        trace.record(SessionTrace.QUEUE, "clear");
+        trace.close();
+        // Recording after close is ignored
+        trace.record(SessionTrace.LINK, "lost");
+
+        SessionTrace.Reader reader = new SessionTrace.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals(SessionTrace.OUT_LINE, reader.getType());
+        assertEquals("druzinka a 1", reader.getText());
+        assertTrue(reader.next());
+        assertEquals(SessionTrace.IN_FRAME, reader.getType());
+        assertEquals(1, reader.getLength());
+        assertEquals(FrameCodec.OP_CLEAR, reader.getData()[0]);
+        long time = reader.getTime();
+        assertTrue(reader.next());
+        assertEquals("clear", reader.getText());
+        assertTrue(reader.getTime() >= time);
+        assertFalse(reader.next());
+        assertEquals(0, trace.getDropped());
+    }
+}
@@ -0,0 +1,36 @@
+package sk.ksp.callcentrum.core;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dictionary of a few words for the tests.
+ */
+class Words implements CommandTokenizer.Dictionary {
+
+    private final List<String> names;
+
+    Words(String... names) {
+        this.names = Arrays.asList(names);
+    }
+
+    @Override
+    public int find(byte[] buffer, int offset, int length) {
+        try {
+            return names.indexOf(new String(buffer, offset, length, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    @Override
+    public int getCount() {
+        return names.size();
+    }
+}
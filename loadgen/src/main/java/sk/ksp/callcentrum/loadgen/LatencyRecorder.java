@@ -0,0 +1,48 @@
+package sk.ksp.callcentrum.loadgen;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects latencies in microseconds and reports their percentiles.
+ */
+class LatencyRecorder {
+
+    private final String name;
+    private long[] samples = new long[1024];
+    private int count;
+
+    public LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    public void add(long micros) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = micros;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the percentile (0..100) in microseconds, 0 without samples. Sorts the samples.
+     */
+    public long percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(samples, 0, count);
+        int index = (int) Math.ceil(p / 100 * count) - 1;
+        return samples[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%-10s n=%-8d p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f ms",
+                name, count, percentile(50) / 1000.0, percentile(90) / 1000.0,
+                percentile(99) / 1000.0, percentile(99.9) / 1000.0, percentile(100) / 1000.0);
+    }
+}
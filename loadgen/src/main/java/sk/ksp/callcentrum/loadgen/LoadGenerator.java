@@ -0,0 +1,369 @@
+package sk.ksp.callcentrum.loadgen;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Load generator for the game server: N simulated phones dial in, answer the play commands
+ * with empty once the words would have been played and send the events of a script.
+ *
+ * All phones run on one thread with a selector, so thousands of them fit into one process.
+ * Reports the connect and handshake latency, the latency from an event of a phone to the
+ * next command the server sent it, the round trip of the heartbeat if the server asks for
+ * one, and the throughput.
+ */
+public class LoadGenerator {
+
+    private static final int CONNECT = 0;
+    private static final int PLAYED = 1;
+    private static final int SCRIPT = 2;
+    private static final int HEARTBEAT = 3;
+
+    private static final int REPORT_INTERVAL = 5000;
+    private static final int REDIAL_DELAY = 1000;
+
+    private static class Timer implements Comparable<Timer> {
+        final long at;
+        final long order;
+        final SimulatedPhone phone;
+        final int action;
+        final int arg;
+
+        Timer(long at, long order, SimulatedPhone phone, int action, int arg) {
+            this.at = at;
+            this.order = order;
+            this.phone = phone;
+            this.action = action;
+            this.arg = arg;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (at != other.at) {
+                return at < other.at ? -1 : 1;
+            }
+            return order < other.order ? -1 : order > other.order ? 1 : 0;
+        }
+    }
+
+    // Event of the script, sent the given time after the call started
+    private static class ScriptEvent {
+        final long at;
+        final String line;
+
+        ScriptEvent(long at, String line) {
+            this.at = at;
+            this.line = line;
+        }
+    }
+
+    private String host = "localhost";
+    private int port = 1234;
+    private int phoneCount = 10;
+    private String[] druzinkaNames = {"test"};
+    private String number = "0";
+    private long rampMillis = 1000;
+    private long durationMillis = 60000;
+    private boolean redial;
+    private int wordMillis = 500;
+    private final Map<String, Integer> durations = new HashMap<String, Integer>();
+    private final List<ScriptEvent> script = new ArrayList<ScriptEvent>();
+
+    private Selector selector;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    // Heartbeat interval of the phones whose server asked for one
+    private final Map<SimulatedPhone, Integer> heartbeats = new HashMap<SimulatedPhone, Integer>();
+    private long timerOrder;
+
+    final LatencyRecorder connectLatency = new LatencyRecorder("connect");
+    final LatencyRecorder handshakeLatency = new LatencyRecorder("handshake");
+    final LatencyRecorder commandLatency = new LatencyRecorder("command");
+    final LatencyRecorder heartbeatLatency = new LatencyRecorder("heartbeat");
+    long commands;
+    long events;
+    long badLines;
+    private int calls;
+    private int failed;
+    private int dropped;
+    private int finished;
+
+    public static void main(String[] args) throws IOException {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: loadgen [--host h] [--port p] [--phones n] [--druzinka a,b,..]"
+                    + " [--number n] [--ramp ms] [--duration s] [--redial] [--word-ms ms]"
+                    + " [--durations trim.csv] [--script events.txt]");
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--redial")) {
+                redial = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args[++i];
+            try {
+                if (arg.equals("--host")) {
+                    host = value;
+                } else if (arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (arg.equals("--phones")) {
+                    phoneCount = Integer.parseInt(value);
+                } else if (arg.equals("--druzinka")) {
+                    druzinkaNames = value.split(",");
+                } else if (arg.equals("--number")) {
+                    number = value;
+                } else if (arg.equals("--ramp")) {
+                    rampMillis = Long.parseLong(value);
+                } else if (arg.equals("--duration")) {
+                    durationMillis = Long.parseLong(value) * 1000;
+                } else if (arg.equals("--word-ms")) {
+                    wordMillis = Integer.parseInt(value);
+                } else if (arg.equals("--durations")) {
+                    readDurations(value);
+                } else if (arg.equals("--script")) {
+                    readScript(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value of " + arg + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * Reads clip durations from a csv with the clip name first and the duration in ms
+     * second, or third for the trim.csv report of the voice processing (after_ms).
+     */
+    private void readDurations(String file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String s;
+            while ((s = reader.readLine()) != null) {
+                String[] columns = s.split(",");
+                if (columns.length < 2) {
+                    continue;
+                }
+                String millis = columns[columns.length >= 4 ? 2 : 1].trim();
+                if (millis.isEmpty() || !Character.isDigit(millis.charAt(0))) {
+                    // Header
+                    continue;
+                }
+                String name = columns[0].trim();
+                int dot = name.lastIndexOf('.');
+                durations.put(dot > 0 ? name.substring(0, dot) : name, Integer.parseInt(millis));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the script, lines of "<ms after the call started> <event>", for example
+     * "1500 button 5" or "4000 shake". Empty lines and lines starting with # are skipped.
+     */
+    private void readScript(String file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String s;
+            while ((s = reader.readLine()) != null) {
+                s = s.trim();
+                if (s.isEmpty() || s.startsWith("#")) {
+                    continue;
+                }
+                int space = s.indexOf(' ');
+                if (space < 0) {
+                    throw new IllegalArgumentException("Bad script line: " + s);
+                }
+                script.add(new ScriptEvent(Long.parseLong(s.substring(0, space)), s.substring(space + 1).trim()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+
+    String getNumber() {
+        return number;
+    }
+
+    int getDuration(String word) {
+        Integer millis = durations.get(word);
+        return millis != null ? millis : wordMillis;
+    }
+
+    void schedulePlayed(SimulatedPhone phone, int generation, long at) {
+        schedule(at, phone, PLAYED, generation);
+    }
+
+    /**
+     * Schedules the script and the heartbeat of the connection, heartbeat is the interval
+     * of the start line in ms, 0 if none.
+     */
+    void onStarted(SimulatedPhone phone, int connection, int heartbeat, long now) {
+        calls++;
+        for (int i = 0; i < script.size(); i++) {
+            schedule(now + script.get(i).at * 1000000L, phone, SCRIPT, i);
+        }
+        if (heartbeat > 0) {
+            heartbeats.put(phone, heartbeat);
+            schedule(now + heartbeat * 1000000L, phone, HEARTBEAT, connection);
+        }
+    }
+
+    private void schedule(long at, SimulatedPhone phone, int action, int arg) {
+        timers.add(new Timer(at, timerOrder++, phone, action, arg));
+    }
+
+    public void run() throws IOException {
+        selector = Selector.open();
+        long start = now();
+        long end = start + durationMillis * 1000000L;
+        for (int i = 0; i < phoneCount; i++) {
+            SimulatedPhone phone = new SimulatedPhone(this, i, druzinkaNames[i % druzinkaNames.length]);
+            schedule(start + rampMillis * 1000000L * i / phoneCount, phone, CONNECT, 0);
+        }
+        System.out.println("Dialing " + host + ":" + port + " with " + phoneCount + " phones for "
+                + durationMillis / 1000 + " s");
+
+        long nextReport = start + REPORT_INTERVAL * 1000000L;
+        long lastCommands = 0;
+        long now;
+        while ((now = now()) < end) {
+            while (!timers.isEmpty() && timers.peek().at <= now) {
+                fire(timers.poll(), now);
+            }
+            if (now >= nextReport) {
+                System.out.println(String.format(Locale.US, "%4d s  calls %d  errors %d  closed %d  %.0f commands/s  %s",
+                        (now - start) / 1000000000L, calls, failed, dropped,
+                        (commands - lastCommands) * 1000.0 / REPORT_INTERVAL, commandLatency));
+                lastCommands = commands;
+                nextReport += REPORT_INTERVAL * 1000000L;
+            }
+            long wait = Math.min(end, nextReport);
+            if (!timers.isEmpty()) {
+                wait = Math.min(wait, timers.peek().at);
+            }
+            selector.select(Math.max(1, (wait - now) / 1000000L));
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                handle(key, now());
+            }
+        }
+        long elapsed = now() - start;
+        for (SelectionKey key : selector.keys()) {
+            ((SimulatedPhone) key.attachment()).close();
+        }
+        selector.close();
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "Calls %d, errors %d, closed by the server %d, finished %d",
+                calls, failed, dropped, finished));
+        System.out.println(String.format(Locale.US, "Commands %d (%.0f/s), events %d (%.0f/s), bad lines %d",
+                commands, commands * 1e9 / elapsed, events, events * 1e9 / elapsed, badLines));
+        System.out.println(connectLatency);
+        System.out.println(handshakeLatency);
+        System.out.println(commandLatency);
+        if (heartbeatLatency.getCount() > 0) {
+            System.out.println(heartbeatLatency);
+        }
+    }
+
+    private void fire(Timer timer, long now) {
+        SimulatedPhone phone = timer.phone;
+        try {
+            switch (timer.action) {
+                case CONNECT:
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, phone);
+                    phone.connect(channel, key, now);
+                    if (channel.connect(new InetSocketAddress(host, port))) {
+                        phone.onConnected(now);
+                    }
+                    break;
+                case PLAYED:
+                    if (phone.isConnected() && !phone.onPlayed(timer.arg, now)) {
+                        finished++;
+                        hangUp(phone, now);
+                    }
+                    break;
+                case SCRIPT:
+                    if (phone.isConnected()) {
+                        phone.sendEvent(script.get(timer.arg).line, now);
+                    }
+                    break;
+                case HEARTBEAT:
+                    if (phone.isConnected() && phone.onHeartbeat(timer.arg, now)) {
+                        schedule(now + heartbeats.get(phone) * 1000000L, phone, HEARTBEAT, timer.arg);
+                    }
+                    break;
+            }
+        } catch (IOException e) {
+            fail(phone, now, e);
+        }
+    }
+
+    private void handle(SelectionKey key, long now) {
+        SimulatedPhone phone = (SimulatedPhone) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                phone.onConnected(now);
+                return;
+            }
+            if (key.isWritable()) {
+                phone.onWritable();
+            }
+            if (key.isReadable() && !phone.onReadable(now)) {
+                dropped++;
+                hangUp(phone, now);
+            }
+        } catch (IOException e) {
+            fail(phone, now, e);
+        }
+    }
+
+    private void fail(SimulatedPhone phone, long now, IOException e) {
+        if (failed++ < 10) {
+            System.err.println("Phone " + phone.getId() + ": " + e);
+        }
+        hangUp(phone, now);
+    }
+
+    private void hangUp(SimulatedPhone phone, long now) {
+        phone.close();
+        if (redial) {
+            schedule(now + REDIAL_DELAY * 1000000L, phone, CONNECT, 0);
+        }
+    }
+}
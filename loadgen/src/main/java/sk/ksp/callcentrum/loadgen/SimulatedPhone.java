@@ -0,0 +1,329 @@
+package sk.ksp.callcentrum.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import sk.ksp.callcentrum.core.AudioSink;
+import sk.ksp.callcentrum.core.CallProtocol;
+import sk.ksp.callcentrum.core.CommandTokenizer;
+import sk.ksp.callcentrum.core.LinkStats;
+import sk.ksp.callcentrum.core.UiSink;
+
+/**
+ * One phone in a call, driven by the selector loop of LoadGenerator. Plays the commands of
+ * the server only in time: a play command sends empty after the durations of its words.
+ * Pings the server at the heartbeat interval of the start line like PlayQueueSession, the
+ * pongs are not counted as commands.
+ */
+class SimulatedPhone implements AudioSink, UiSink, CallProtocol.PongListener {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final CommandTokenizer.Dictionary NO_WORDS = new CommandTokenizer.Dictionary() {
+        @Override
+        public int find(byte[] bytes, int offset, int length) {
+            return -1;
+        }
+
+        @Override
+        public String getName(int id) {
+            return null;
+        }
+
+        @Override
+        public int getCount() {
+            return 0;
+        }
+    };
+
+    private final LoadGenerator generator;
+    private final int id;
+    private final String druzinkaName;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private final ByteBuffer out = ByteBuffer.allocate(4096);
+    private final CommandTokenizer line = new CommandTokenizer();
+    private CallProtocol protocol;
+    private LinkStats linkStats;
+
+    private long connectStart;
+    private long handshakeStart;
+    // When the last event was sent, 0 once the server answered it
+    private long eventSent;
+    // Time the queued words finish playing
+    private long playingUntil;
+    // Bumped by every queue change, stale empty timers are ignored
+    private int generation;
+    private boolean shutdownQueued;
+    // Bumped by every connection, stale heartbeat timers are ignored
+    private int connection;
+    private int pingSeq;
+    // Time the last ping was sent, 0 if it has been answered
+    private long pingSent;
+    // The line being handled was a pong
+    private boolean pong;
+
+    public SimulatedPhone(LoadGenerator generator, int id, String druzinkaName) {
+        this.generator = generator;
+        this.id = id;
+        this.druzinkaName = druzinkaName;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isConnected() {
+        return channel != null;
+    }
+
+    public void connect(SocketChannel channel, SelectionKey key, long now) {
+        this.channel = channel;
+        this.key = key;
+        connectStart = now;
+        in.clear();
+        out.clear();
+        protocol = new CallProtocol(this, this, NO_WORDS);
+        protocol.setPongListener(this);
+        linkStats = new LinkStats();
+        pingSeq = 0;
+        pingSent = 0;
+        connection++;
+        eventSent = 0;
+        playingUntil = 0;
+        generation++;
+        shutdownQueued = false;
+    }
+
+    public void onConnected(long now) throws IOException {
+        channel.finishConnect();
+        generator.connectLatency.add((now - connectStart) / 1000);
+        handshakeStart = now;
+        key.interestOps(SelectionKey.OP_READ);
+        write(CallProtocol.handshake(druzinkaName, generator.getNumber(), -1));
+    }
+
+    /**
+     * Reads what the server sent and handles the complete lines. Returns false once the
+     * server closed the connection.
+     */
+    public boolean onReadable(long now) throws IOException {
+        if (!in.hasRemaining()) {
+            // A line longer than the buffer
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        if (channel.read(in) < 0) {
+            return false;
+        }
+        byte[] bytes = in.array();
+        int start = 0;
+        for (int i = 0; i < in.position(); i++) {
+            if (bytes[i] == '\n') {
+                int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                line.setLine(bytes, start, end - start);
+                handleLine(now);
+                start = i + 1;
+                if (channel == null) {
+                    return true;
+                }
+            }
+        }
+        in.limit(in.position());
+        in.position(start);
+        in.compact();
+        return true;
+    }
+
+    private void handleLine(long now) throws IOException {
+        if (protocol.getState() == CallProtocol.STATE_UNINITIALIZED) {
+            generator.commands++;
+            if (!protocol.onStartLine(line, false)) {
+                generator.badLines++;
+                return;
+            }
+            generator.handshakeLatency.add((now - handshakeStart) / 1000);
+            generator.onStarted(this, connection, protocol.getHeartbeatInterval(), now);
+            return;
+        }
+        pong = false;
+        try {
+            if (!protocol.onLine(line)) {
+                generator.badLines++;
+            }
+        } catch (NumberFormatException e) {
+            generator.badLines++;
+        }
+        if (pong) {
+            // Answers the heartbeat, not an event
+            return;
+        }
+        generator.commands++;
+        if (eventSent != 0) {
+            generator.commandLatency.add((now - eventSent) / 1000);
+            eventSent = 0;
+        }
+    }
+
+    /**
+     * Called by the heartbeat timer of the connection. Sends a ping with the round trip
+     * estimate, returns false if the timer belongs to an earlier connection.
+     */
+    public boolean onHeartbeat(int connection, long now) throws IOException {
+        if (connection != this.connection) {
+            return false;
+        }
+        if (pingSent != 0) {
+            linkStats.addLoss();
+        }
+        pingSeq++;
+        pingSent = now;
+        write("ping " + pingSeq + " " + linkStats.getRtt() + " " + linkStats.getJitter());
+        return true;
+    }
+
+    @Override
+    public void onPong(int seq) {
+        pong = true;
+        if (seq == pingSeq && pingSent != 0) {
+            long now = generator.now();
+            linkStats.addSample((int) ((now - pingSent) / 1000000L));
+            generator.heartbeatLatency.add((now - pingSent) / 1000);
+            pingSent = 0;
+        }
+    }
+
+    public LinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    public void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * Sends an event of the phone, the server latency is measured until its next command.
+     */
+    public void sendEvent(String event, long now) throws IOException {
+        if (protocol.getState() != CallProtocol.STATE_NORMAL) {
+            return;
+        }
+        if (eventSent == 0) {
+            eventSent = now;
+        }
+        generator.events++;
+        write(event);
+    }
+
+    /**
+     * Called by the empty timer of the generation. Returns false when the call ended with
+     * the shutdown word.
+     */
+    public boolean onPlayed(int generation, long now) throws IOException {
+        if (generation != this.generation) {
+            return true;
+        }
+        if (shutdownQueued) {
+            return false;
+        }
+        sendEvent("empty", now);
+        return true;
+    }
+
+    public void close() {
+        if (channel != null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closed anyway
+            }
+            channel = null;
+        }
+        generation++;
+    }
+
+    private void write(String s) throws IOException {
+        byte[] bytes = (s + "\n").getBytes(UTF8);
+        if (out.remaining() < bytes.length) {
+            throw new IOException("Phone " + id + " is not reading, output buffer full");
+        }
+        out.put(bytes);
+        flush();
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        channel.write(out);
+        out.compact();
+        key.interestOps(out.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    // Queues the words after playingUntil, up to the shutdown word
+    private void queue(String[] words) {
+        long now = generator.now();
+        long at = Math.max(playingUntil, now);
+        for (String word : words) {
+            if (CallProtocol.SHUTDOWN.equals(word)) {
+                shutdownQueued = true;
+                break;
+            }
+            at += generator.getDuration(word) * 1000000L;
+        }
+        playingUntil = at;
+        generation++;
+        generator.schedulePlayed(this, generation, at);
+    }
+
+    @Override
+    public void push(String[] words) {
+        playingUntil = 0;
+        shutdownQueued = false;
+        queue(words);
+    }
+
+    @Override
+    public void append(String[] words) {
+        queue(words);
+    }
+
+    @Override
+    public void playAfterCurrent(String[] words) {
+        queue(words);
+    }
+
+    @Override
+    public void interrupt(int priority, String[] words) {
+        queue(words);
+    }
+
+    @Override
+    public void preload(String[] words) {
+    }
+
+    @Override
+    public void clear() {
+        playingUntil = 0;
+        shutdownQueued = false;
+        generation++;
+    }
+
+    @Override
+    public void setLowWater(int millis) {
+    }
+
+    @Override
+    public void showImage(String image) {
+    }
+
+    @Override
+    public void showName(String name) {
+    }
+}
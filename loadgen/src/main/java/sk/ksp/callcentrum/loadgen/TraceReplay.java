@@ -0,0 +1,445 @@
+package sk.ksp.callcentrum.loadgen;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sk.ksp.callcentrum.core.AudioSink;
+import sk.ksp.callcentrum.core.CallProtocol;
+import sk.ksp.callcentrum.core.CommandTokenizer;
+import sk.ksp.callcentrum.core.FrameCodec;
+import sk.ksp.callcentrum.core.SessionTrace;
+import sk.ksp.callcentrum.core.UiSink;
+
+/**
+ * Replays a trace recorded by the app with BuildConfig.sessionTrace and compares the timing
+ * with the recording.
+ *
+ * The recorded timing is taken apart first: how long the server took to answer an event of
+ * the phone, how long a command waited for the audio thread, the silences between an empty
+ * queue and the next sentence, and the gaps between the commands.
+ *
+ * With --core the commands of the server go through CallProtocol again, measuring what the
+ * protocol code costs without the audio. With --server host:port the events of the phone are
+ * sent to a server, the stand-in of the :server module for example, measuring its answers.
+ * The trace is replayed at the recorded speed, or as fast as possible with --fast.
+ */
+public class TraceReplay {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // How long to wait for the answer to the last event
+    private static final int DRAIN_TIMEOUT = 2000;
+
+    // Kinds of server commands for the audio thread
+    private static final int NOT_AUDIO = 0;
+    private static final int QUEUED = 1;
+    // Replaces what the queue has, the audio thread drops the commands before it
+    private static final int REPLACING = 2;
+
+    private static class Record {
+        final int type;
+        // Microseconds since the start of the trace
+        final long time;
+        final byte[] data;
+
+        Record(int type, long time, byte[] data) {
+            this.type = type;
+            this.time = time;
+            this.data = data;
+        }
+
+        String text() {
+            return new String(data, UTF8);
+        }
+    }
+
+    private final List<Record> records = new ArrayList<Record>();
+    private final boolean fast;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String file = null;
+        String server = null;
+        boolean fast = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--fast")) {
+                fast = true;
+            } else if (args[i].equals("--core")) {
+                server = null;
+            } else if (args[i].equals("--server") && i + 1 < args.length) {
+                server = args[++i];
+            } else if (file == null && !args[i].startsWith("--")) {
+                file = args[i];
+            } else {
+                file = null;
+                break;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: replay <trace> [--fast] [--core | --server host:port]");
+            System.exit(2);
+        }
+        TraceReplay replay = new TraceReplay(file, fast);
+        replay.analyze();
+        if (server == null) {
+            replay.replayCore();
+        } else {
+            int colon = server.lastIndexOf(':');
+            replay.replayServer(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+        }
+    }
+
+    public TraceReplay(String file, boolean fast) throws IOException {
+        this.fast = fast;
+        SessionTrace.Reader reader = new SessionTrace.Reader(new FileInputStream(file));
+        try {
+            while (reader.next()) {
+                records.add(new Record(reader.getType(), reader.getTime(),
+                        Arrays.copyOf(reader.getData(), reader.getLength())));
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.println(file + ": " + records.size() + " records, "
+                + (records.isEmpty() ? 0 : records.get(records.size() - 1).time / 1000000) + " s");
+    }
+
+    /**
+     * Prints the timing of the recording.
+     */
+    public void analyze() {
+        LatencyRecorder server = new LatencyRecorder("server");
+        LatencyRecorder queue = new LatencyRecorder("queue");
+        LatencyRecorder silence = new LatencyRecorder("silence");
+        LatencyRecorder gaps = new LatencyRecorder("gaps");
+        long eventSent = -1;
+        long lastCommand = -1;
+        long emptyAt = -1;
+        List<Long> waiting = new ArrayList<Long>();
+        for (Record record : records) {
+            switch (record.type) {
+                case SessionTrace.OUT_LINE:
+                    if (isEvent(record.text()) && eventSent < 0) {
+                        eventSent = record.time;
+                    }
+                    break;
+                case SessionTrace.IN_LINE:
+                case SessionTrace.IN_FRAME:
+                    int audio = audioCommand(record);
+                    if (audio == NOT_AUDIO && isControl(record)) {
+                        break;
+                    }
+                    if (eventSent >= 0) {
+                        server.add(record.time - eventSent);
+                        eventSent = -1;
+                    }
+                    if (lastCommand >= 0) {
+                        gaps.add(record.time - lastCommand);
+                    }
+                    lastCommand = record.time;
+                    if (audio == REPLACING) {
+                        // Drops the commands the audio thread did not take yet
+                        waiting.clear();
+                    }
+                    if (audio != NOT_AUDIO) {
+                        waiting.add(record.time);
+                    }
+                    break;
+                case SessionTrace.QUEUE:
+                    String state = record.text();
+                    if (state.equals("empty")) {
+                        emptyAt = record.time;
+                    } else if (isQueueCommand(state)) {
+                        if (!waiting.isEmpty()) {
+                            queue.add(record.time - waiting.remove(0));
+                        }
+                        if (emptyAt >= 0 && !state.startsWith("preload") && !state.equals("clear")) {
+                            silence.add(record.time - emptyAt);
+                            emptyAt = -1;
+                        }
+                    }
+                    break;
+                case SessionTrace.LINK:
+                    eventSent = -1;
+                    break;
+            }
+        }
+        System.out.println("Recorded:");
+        System.out.println(server);
+        System.out.println(queue);
+        System.out.println(silence);
+        System.out.println(gaps);
+    }
+
+    /**
+     * Feeds the commands of the server through CallProtocol, measuring the time of every
+     * command and the gaps between them.
+     */
+    public void replayCore() throws IOException, InterruptedException {
+        CommandTokenizer.Dictionary noWords = new CommandTokenizer.Dictionary() {
+            @Override
+            public int find(byte[] buffer, int offset, int length) {
+                return -1;
+            }
+
+            @Override
+            public String getName(int id) {
+                return null;
+            }
+
+            @Override
+            public int getCount() {
+                return 0;
+            }
+        };
+        CallProtocol protocol = new CallProtocol(new NullSink(), new NullSink(), noWords);
+        CommandTokenizer line = new CommandTokenizer();
+        LatencyRecorder handling = new LatencyRecorder("handling");
+        LatencyRecorder gaps = new LatencyRecorder("gaps");
+        long start = System.nanoTime();
+        long lastCommand = -1;
+        int commands = 0;
+        for (Record record : records) {
+            if (record.type != SessionTrace.IN_LINE && record.type != SessionTrace.IN_FRAME) {
+                continue;
+            }
+            if (record.type == SessionTrace.IN_LINE && record.text().equals("resumed")) {
+                // Answer to the resume, not a command
+                continue;
+            }
+            waitFor(start, record.time);
+            // The frame is read off the wire before it is handled, not part of the handling
+            FrameCodec codec = null;
+            int opcode = 0;
+            if (record.type == SessionTrace.IN_FRAME) {
+                codec = new FrameCodec(new ByteArrayInputStream(framed(record.data)), null, noWords);
+                opcode = codec.readFrame();
+            }
+            long before = System.nanoTime();
+            if (record.type == SessionTrace.IN_LINE) {
+                line.setLine(record.data, 0, record.data.length);
+                if (protocol.getState() == CallProtocol.STATE_UNINITIALIZED) {
+                    protocol.onStartLine(line, true);
+                } else {
+                    try {
+                        protocol.onLine(line);
+                    } catch (NumberFormatException e) {
+                        // Counted as a command anyway
+                    }
+                }
+            } else {
+                protocol.onFrame(codec, opcode);
+            }
+            long after = System.nanoTime();
+            handling.add((after - before) / 1000);
+            if (lastCommand >= 0) {
+                gaps.add((before - lastCommand) / 1000);
+            }
+            lastCommand = before;
+            commands++;
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Replayed through the core" + (fast ? ", as fast as possible:" : ", at recorded speed:"));
+        System.out.println(handling);
+        System.out.println(gaps);
+        System.out.println(String.format("%d commands in %.1f ms", commands, elapsed / 1e6));
+    }
+
+    /**
+     * Sends the events of the phone to the server, measuring the time until its next command.
+     * The server gets the text protocol, the trace has the events in text anyway.
+     */
+    public void replayServer(String host, int port) throws IOException, InterruptedException {
+        final Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        OutputStream out = socket.getOutputStream();
+        final InputStream in = socket.getInputStream();
+        final LatencyRecorder server = new LatencyRecorder("server");
+        final AtomicLong eventSent = new AtomicLong();
+
+        String handshake = null;
+        long startTime = 0;
+        for (Record record : records) {
+            if (record.type == SessionTrace.OUT_LINE && handshake == null) {
+                handshake = record.text();
+            } else if (record.type == SessionTrace.IN_LINE && handshake != null) {
+                startTime = record.time;
+                break;
+            }
+        }
+        if (handshake == null) {
+            throw new IOException("No handshake in the trace");
+        }
+        int binary = handshake.indexOf(" binary");
+        out.write(((binary >= 0 ? handshake.substring(0, binary) : handshake) + "\n").getBytes(UTF8));
+        final CommandTokenizer line = new CommandTokenizer();
+        if (!line.readLine(in) || !line.nextToken() || !line.tokenEquals("start")) {
+            throw new IOException("Server did not start: " + line.line());
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (line.readLine(in)) {
+                        long now = System.nanoTime();
+                        if (line.nextToken() && line.tokenEquals("pong")) {
+                            continue;
+                        }
+                        long sent = eventSent.getAndSet(0);
+                        if (sent != 0) {
+                            synchronized (server) {
+                                server.add((now - sent) / 1000);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        reader.start();
+
+        long start = System.nanoTime();
+        int events = 0;
+        for (Record record : records) {
+            if (record.type != SessionTrace.OUT_LINE || record.time <= startTime || !isEvent(record.text())) {
+                continue;
+            }
+            waitFor(start, record.time - startTime);
+            eventSent.compareAndSet(0, System.nanoTime());
+            out.write(record.data);
+            out.write('\n');
+            out.flush();
+            events++;
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (eventSent.get() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        socket.close();
+        reader.join();
+        System.out.println("Replayed " + events + " events to " + host + ":" + port
+                + (fast ? ", as fast as possible:" : ", at recorded speed:"));
+        synchronized (server) {
+            System.out.println(server);
+        }
+    }
+
+    // Sleeps until the time of the record, unless replaying as fast as possible
+    private void waitFor(long start, long micros) throws InterruptedException {
+        if (fast) {
+            return;
+        }
+        long left = start + micros * 1000 - System.nanoTime();
+        if (left > 0) {
+            Thread.sleep(left / 1000000, (int) (left % 1000000));
+        }
+    }
+
+    // Prefixes the frame with its length, as it came over the wire
+    private static byte[] framed(byte[] frame) {
+        byte[] bytes = new byte[frame.length + 5];
+        int n = 0;
+        int value = frame.length;
+        while ((value & ~0x7f) != 0) {
+            bytes[n++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        bytes[n++] = (byte) value;
+        System.arraycopy(frame, 0, bytes, n, frame.length);
+        return bytes;
+    }
+
+    // Events of the phone, not the handshake, resume or heartbeat
+    private static boolean isEvent(String line) {
+        return !line.startsWith("druzinka ") && !line.startsWith("resume ") && !line.startsWith("ping ");
+    }
+
+    private static boolean isQueueCommand(String state) {
+        return state.startsWith("push") || state.startsWith("enqueue") || state.startsWith("preload")
+                || state.equals("clear");
+    }
+
+    // Start line, answer to resume or to ping, not commands of the game
+    private static boolean isControl(Record record) {
+        if (record.type == SessionTrace.IN_FRAME) {
+            return record.data.length > 0 && (record.data[0] & 0xff) == FrameCodec.OP_PONG;
+        }
+        String line = record.text();
+        return line.startsWith("pong ") || line.startsWith("start") || line.equals("resumed");
+    }
+
+    private static int audioCommand(Record record) {
+        if (record.type == SessionTrace.IN_FRAME) {
+            switch (record.data.length > 0 ? record.data[0] & 0xff : 0) {
+                case FrameCodec.OP_PLAY:
+                case FrameCodec.OP_SHUTDOWN:
+                case FrameCodec.OP_CLEAR:
+                    return REPLACING;
+                case FrameCodec.OP_APPEND:
+                case FrameCodec.OP_PLAY_AFTER_CURRENT:
+                case FrameCodec.OP_INTERRUPT:
+                case FrameCodec.OP_PRELOAD:
+                    return QUEUED;
+                default:
+                    return NOT_AUDIO;
+            }
+        }
+        String line = record.text();
+        String verb = line.indexOf(' ') >= 0 ? line.substring(0, line.indexOf(' ')) : line;
+        if (verb.equals("play") || verb.equals("shutdown") || verb.equals("clear")) {
+            return REPLACING;
+        }
+        if (verb.equals("append") || verb.equals("play-after-current") || verb.equals("interrupt")
+                || verb.equals("preload")) {
+            return QUEUED;
+        }
+        return NOT_AUDIO;
+    }
+
+    private static class NullSink implements AudioSink, UiSink {
+        @Override
+        public void push(String[] words) {
+        }
+
+        @Override
+        public void append(String[] words) {
+        }
+
+        @Override
+        public void playAfterCurrent(String[] words) {
+        }
+
+        @Override
+        public void interrupt(int priority, String[] words) {
+        }
+
+        @Override
+        public void preload(String[] words) {
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void setLowWater(int millis) {
+        }
+
+        @Override
+        public void showImage(String image) {
+        }
+
+        @Override
+        public void showName(String name) {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package sk.ksp.callcentrum.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import sk.ksp.callcentrum.core.CommandTokenizer;
+
+/**
+ * Socket of a phone on the server loop. Splits what the phone sends into text lines or, once
+ * the session is binary, frames, and buffers what is sent to it.
+ */
+class Connection {
+
+    // A phone not reading more than this is dropped
+    private static final int MAX_OUTPUT = 1024 * 1024;
+    private static final int MAX_INPUT = 64 * 1024;
+
+    private final GameServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(1024);
+    private ByteBuffer out = ByteBuffer.allocate(1024);
+    private final CommandTokenizer line = new CommandTokenizer();
+    // Varints of the last frame, events have at most three
+    private final int[] values = new int[3];
+    private Session session;
+    private boolean binary;
+    private boolean closed;
+    private long lastRead;
+    // The phone sent a ping, it keeps the heartbeat
+    private boolean pinged;
+
+    public Connection(GameServer server, SocketChannel channel, SelectionKey key, long now) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        lastRead = now;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public void setSession(Session session) {
+        this.session = session;
+        binary = session.isBinary();
+    }
+
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    public boolean hasPinged() {
+        return pinged;
+    }
+
+    public void setPinged() {
+        pinged = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Reads and handles what the phone sent. Returns false at the end of the stream.
+     */
+    public boolean onReadable(long now) throws IOException {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_INPUT) {
+                throw new IOException("Message too long");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        if (channel.read(in) < 0) {
+            return false;
+        }
+        lastRead = now;
+        byte[] bytes = in.array();
+        int end = in.position();
+        int start = 0;
+        while (start < end && !closed) {
+            int next = binary ? frame(bytes, start, end) : line(bytes, start, end);
+            if (next < 0) {
+                break;
+            }
+            start = next;
+        }
+        in.limit(end);
+        in.position(start);
+        in.compact();
+        return true;
+    }
+
+    // Handles the line at start, returns the start of the next message or -1 if incomplete
+    private int line(byte[] bytes, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                int length = (i > start && bytes[i - 1] == '\r' ? i - 1 : i) - start;
+                line.setLine(bytes, start, length);
+                if (line.nextToken()) {
+                    server.onLine(this, line);
+                }
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int frame(byte[] bytes, int start, int end) throws IOException {
+        int size = 0;
+        int n = start;
+        for (int shift = 0; ; shift += 7) {
+            if (n == end) {
+                return -1;
+            }
+            if (shift > 21) {
+                throw new IOException("Bad frame length");
+            }
+            int b = bytes[n++];
+            size |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (size < 1 || size > MAX_INPUT) {
+            throw new IOException("Bad frame length: " + size);
+        }
+        if (end - n < size) {
+            return -1;
+        }
+        int opcode = bytes[n] & 0xff;
+        int position = n + 1;
+        int frameEnd = n + size;
+        for (int v = 0; v < values.length; v++) {
+            if (position == frameEnd) {
+                values[v] = 0;
+                continue;
+            }
+            int value = 0;
+            int b;
+            int shift = 0;
+            do {
+                if (position >= frameEnd || shift > 28) {
+                    throw new IOException("Truncated frame");
+                }
+                b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            values[v] = value;
+        }
+        server.onFrame(this, opcode, values);
+        return frameEnd;
+    }
+
+    /**
+     * Queues the bytes and sends as much as the socket takes.
+     */
+    public void write(byte[] bytes) {
+        if (closed) {
+            return;
+        }
+        if (out.remaining() < bytes.length) {
+            if (out.position() + bytes.length > MAX_OUTPUT) {
+                server.close(this, "not reading");
+                return;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        out.put(bytes);
+        flush();
+    }
+
+    public void flush() {
+        try {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            server.close(this, e.toString());
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+}
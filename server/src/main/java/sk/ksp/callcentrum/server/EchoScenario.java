@@ -0,0 +1,50 @@
+package sk.ksp.callcentrum.server;
+
+import sk.ksp.callcentrum.core.CallProtocol;
+
+/**
+ * Default scenario: greets the caller, says every digit pressed back, stops talking on a shake
+ * and ends the call on #.
+ */
+public class EchoScenario implements Scenario {
+
+    private static final String[] DIGITS = {"nula__0", "jedna__0", "dva__0", "tri__0", "styri__0",
+            "pat__0", "sest__0", "sedem__0", "osem__0", "devat__0"};
+
+    @Override
+    public void onStart(Session session) {
+        session.name(session.getDruzinkaName());
+        session.play("vitajte__0");
+    }
+
+    @Override
+    public void onButton(Session session, char button) {
+        if (button == '#') {
+            session.play("dovidenia__0", CallProtocol.SHUTDOWN);
+        } else if (button >= '0' && button <= '9') {
+            session.play(DIGITS[button - '0']);
+        }
+    }
+
+    @Override
+    public void onShake(Session session) {
+        session.clear();
+        session.play("koniec__0");
+    }
+
+    @Override
+    public void onEmpty(Session session) {
+    }
+
+    @Override
+    public void onPlaying(Session session, int index) {
+    }
+
+    @Override
+    public void onLowWater(Session session, int remainingMillis) {
+    }
+
+    @Override
+    public void onEnd(Session session) {
+    }
+}
@@ -0,0 +1,426 @@
+package sk.ksp.callcentrum.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import sk.ksp.callcentrum.core.CommandTokenizer;
+import sk.ksp.callcentrum.core.FrameCodec;
+import sk.ksp.callcentrum.core.ServerDiscovery;
+
+/**
+ * Stand-in for the game server, speaking the protocol of PlayQueueSession: the druzinka
+ * handshake, text or binary commands, resume with replay of the missed commands, and pong
+ * answers to the heartbeat. What is played is up to the Scenario. The heartbeat is optional,
+ * only the connections that pinged are closed when they stop.
+ *
+ * All connections are served by one thread with a selector, the scenario runs on it too, so
+ * it needs no locking. Answers the discovery probes of the phones on the local network.
+ */
+public class GameServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // How long a session waits for the phone to resume it
+    private static final int RESUME_WINDOW = 30000;
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+    // Heartbeats missed before the connection is considered dead
+    private static final int HEARTBEAT_MISSES = 3;
+    private static final int SWEEP_INTERVAL = 1000;
+    private static final int REPORT_INTERVAL = 10000;
+
+    private static class Timer implements Comparable<Timer> {
+        final long at;
+        final long order;
+        final Session session;
+        final Runnable task;
+
+        Timer(long at, long order, Session session, Runnable task) {
+            this.at = at;
+            this.order = order;
+            this.session = session;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (at != other.at) {
+                return at < other.at ? -1 : 1;
+            }
+            return order < other.order ? -1 : order > other.order ? 1 : 0;
+        }
+    }
+
+    private int port = ServerDiscovery.PORT;
+    private boolean discovery = true;
+    private int heartbeat = 5000;
+    private WordIndex wordIndex;
+    private Scenario scenario = new EchoScenario();
+
+    private Selector selector;
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private long timerOrder;
+    private final SecureRandom random = new SecureRandom();
+
+    private int connections;
+    private long events;
+    private long calls;
+
+    public static void main(String[] args) throws IOException {
+        GameServer server = new GameServer();
+        try {
+            server.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: server [--port p] [--no-discovery] [--heartbeat ms]"
+                    + " [--bundle voice.bundle] [--scenario class]");
+            System.exit(2);
+        }
+        server.run();
+    }
+
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--no-discovery")) {
+                discovery = false;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args[++i];
+            try {
+                if (arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (arg.equals("--heartbeat")) {
+                    heartbeat = Integer.parseInt(value);
+                } else if (arg.equals("--bundle")) {
+                    wordIndex = new WordIndex(value);
+                } else if (arg.equals("--scenario")) {
+                    scenario = (Scenario) Class.forName(value).newInstance();
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value of " + arg + ": " + value);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Bad scenario " + value + ": " + e);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException(value + " is not a Scenario");
+            }
+        }
+    }
+
+    WordIndex getWordIndex() {
+        return wordIndex;
+    }
+
+    private long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    void schedule(Session session, Runnable task, long delayMillis) {
+        timers.add(new Timer(now() + delayMillis, timerOrder++, session, task));
+    }
+
+    public void run() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().setReuseAddress(true);
+        listener.socket().bind(new InetSocketAddress(port), 1024);
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+
+        if (discovery) {
+            try {
+                Thread responder = new Thread(new ServerDiscovery.Responder(port), "discovery");
+                responder.setDaemon(true);
+                responder.start();
+            } catch (SocketException e) {
+                System.err.println("No discovery: " + e);
+            }
+        }
+        System.out.println("Listening on " + port + (wordIndex != null
+                ? ", binary with " + wordIndex.getCount() + " words" : "")
+                + ", scenario " + scenario.getClass().getSimpleName());
+
+        long nextSweep = now() + SWEEP_INTERVAL;
+        long nextReport = now() + REPORT_INTERVAL;
+        long lastEvents = 0;
+        while (true) {
+            long now = now();
+            while (!timers.isEmpty() && timers.peek().at <= now) {
+                Timer timer = timers.poll();
+                if (!timer.session.isEnded()) {
+                    try {
+                        timer.task.run();
+                    } catch (RuntimeException e) {
+                        scenarioFailed(timer.session, e);
+                    }
+                }
+            }
+            if (now >= nextSweep) {
+                sweep(now);
+                nextSweep = now + SWEEP_INTERVAL;
+            }
+            if (now >= nextReport) {
+                System.out.println("Connections " + connections + ", sessions " + sessions.size()
+                        + ", calls " + calls + ", " + (events - lastEvents) * 1000 / REPORT_INTERVAL + " events/s");
+                lastEvents = events;
+                nextReport = now + REPORT_INTERVAL;
+            }
+            long wait = Math.min(nextSweep, nextReport);
+            if (!timers.isEmpty()) {
+                wait = Math.min(wait, timers.peek().at);
+            }
+            selector.select(Math.max(1, wait - now));
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(listener);
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable() && !connection.onReadable(now())) {
+                        close(connection, null);
+                    }
+                } catch (IOException e) {
+                    close(connection, e.toString());
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel listener) throws IOException {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(this, channel, key, now()));
+            connections++;
+        }
+    }
+
+    void close(Connection connection, String reason) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.close();
+        connections--;
+        Session session = connection.getSession();
+        if (session == null || session.getConnection() != connection) {
+            return;
+        }
+        session.detach(now());
+        if (session.isFinished()) {
+            end(session);
+        } else if (reason != null) {
+            System.out.println(session.getDruzinkaName() + " lost: " + reason);
+        }
+    }
+
+    private void end(Session session) {
+        if (session.isEnded()) {
+            return;
+        }
+        session.setEnded();
+        sessions.remove(session.getToken());
+        if (session.getConnection() != null) {
+            close(session.getConnection(), null);
+        }
+        try {
+            scenario.onEnd(session);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Ends the sessions not resumed in time and closes the connections whose heartbeat stopped
+    private void sweep(long now) {
+        List<Session> expired = new ArrayList<Session>();
+        for (Session session : sessions.values()) {
+            if (session.getConnection() == null && now - session.getDetachedAt() > RESUME_WINDOW) {
+                expired.add(session);
+            }
+        }
+        for (Session session : expired) {
+            end(session);
+        }
+        List<Connection> silent = new ArrayList<Connection>();
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            long idle = now - connection.getLastRead();
+            if (connection.getSession() == null ? idle > HANDSHAKE_TIMEOUT
+                    : heartbeat > 0 && connection.hasPinged()
+                            && idle > (HEARTBEAT_MISSES + 1) * heartbeat) {
+                silent.add(connection);
+            }
+        }
+        for (Connection connection : silent) {
+            close(connection, "silent");
+        }
+    }
+
+    void onLine(Connection connection, CommandTokenizer line) throws IOException {
+        Session session = connection.getSession();
+        if (session == null) {
+            if (line.tokenEquals("druzinka")) {
+                handshake(connection, line);
+            } else if (line.tokenEquals("resume")) {
+                resume(connection, line);
+            } else {
+                close(connection, "bad handshake: " + line.line());
+            }
+            return;
+        }
+        events++;
+        try {
+            if (line.tokenEquals("button")) {
+                if (line.nextToken()) {
+                    scenario.onButton(session, line.tokenString().charAt(0));
+                }
+            } else if (line.tokenEquals("shake")) {
+                scenario.onShake(session);
+            } else if (line.tokenEquals("empty")) {
+                scenario.onEmpty(session);
+            } else if (line.tokenEquals("playing")) {
+                scenario.onPlaying(session, line.nextInt());
+            } else if (line.tokenEquals("lowwater")) {
+                scenario.onLowWater(session, line.nextInt());
+            } else if (line.tokenEquals("ping")) {
+                connection.setPinged();
+                session.pong(line.nextInt());
+            }
+        } catch (NumberFormatException e) {
+            System.out.println(session.getDruzinkaName() + ": bad event " + line.line());
+        } catch (RuntimeException e) {
+            scenarioFailed(session, e);
+        }
+    }
+
+    void onFrame(Connection connection, int opcode, int[] values) {
+        Session session = connection.getSession();
+        events++;
+        try {
+            switch (opcode) {
+                case FrameCodec.OP_BUTTON:
+                    scenario.onButton(session, (char) values[0]);
+                    break;
+                case FrameCodec.OP_SHAKE:
+                    scenario.onShake(session);
+                    break;
+                case FrameCodec.OP_EMPTY:
+                    scenario.onEmpty(session);
+                    break;
+                case FrameCodec.OP_PLAYING:
+                    scenario.onPlaying(session, values[0]);
+                    break;
+                case FrameCodec.OP_LOW_WATER_REACHED:
+                    scenario.onLowWater(session, values[0]);
+                    break;
+                case FrameCodec.OP_PING:
+                    connection.setPinged();
+                    session.pong(values[0]);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            scenarioFailed(session, e);
+        }
+    }
+
+    // druzinka <name> <number> [binary <checksum>]
+    private void handshake(Connection connection, CommandTokenizer line) {
+        if (!line.nextToken()) {
+            close(connection, "bad handshake: " + line.line());
+            return;
+        }
+        String druzinkaName = line.tokenString();
+        String number = line.nextToken() ? line.tokenString() : "";
+        boolean binary = false;
+        if (line.nextToken() && line.tokenEquals("binary") && line.nextToken() && wordIndex != null) {
+            try {
+                binary = Long.parseLong(line.tokenString(), 16) == wordIndex.getChecksum();
+            } catch (NumberFormatException e) {
+                binary = false;
+            }
+        }
+        String token;
+        do {
+            token = Long.toHexString(random.nextLong());
+        } while (sessions.containsKey(token));
+        Session session = new Session(this, token, druzinkaName, number, binary);
+        sessions.put(token, session);
+        calls++;
+        connection.write(("start" + (binary ? " binary" : "") + " resume " + token
+                + (heartbeat > 0 ? " heartbeat " + heartbeat : "") + "\n").getBytes(UTF8));
+        connection.setSession(session);
+        session.attach(connection);
+        try {
+            scenario.onStart(session);
+        } catch (RuntimeException e) {
+            scenarioFailed(session, e);
+        }
+    }
+
+    // resume <token> <commands received>
+    private void resume(Connection connection, CommandTokenizer line) {
+        Session session = null;
+        int received = -1;
+        try {
+            if (line.nextToken()) {
+                session = sessions.get(line.tokenString());
+                received = line.nextInt();
+            }
+        } catch (NumberFormatException e) {
+            session = null;
+        }
+        if (session == null || session.isFinished() || !session.canReplay(received)) {
+            connection.write("unknown\n".getBytes(UTF8));
+            close(connection, null);
+            return;
+        }
+        Connection old = session.getConnection();
+        if (old != null) {
+            // The phone noticed the dead link before we did
+            session.detach(now());
+            close(old, null);
+        }
+        connection.write("resumed\n".getBytes(UTF8));
+        connection.setSession(session);
+        session.attach(connection);
+        session.replay(received);
+    }
+
+    private void scenarioFailed(Session session, RuntimeException e) {
+        System.err.println(session.getDruzinkaName() + ": scenario failed");
+        e.printStackTrace();
+        end(session);
+    }
+}
@@ -0,0 +1,40 @@
+package sk.ksp.callcentrum.server;
+
+/**
+ * The game played over the calls. One instance serves all sessions, the state of a call
+ * belongs into Session.setAttachment().
+ *
+ * Every method is called on the thread of the server loop and must not block, use
+ * Session.schedule() to do something later.
+ */
+public interface Scenario {
+
+    /**
+     * The phone dialed in, the start line is sent already.
+     */
+    public void onStart(Session session);
+
+    public void onButton(Session session, char button);
+
+    public void onShake(Session session);
+
+    /**
+     * The queue of the phone played everything.
+     */
+    public void onEmpty(Session session);
+
+    /**
+     * The phone started playing the word of the last play command, if progress is enabled.
+     */
+    public void onPlaying(Session session, int index);
+
+    /**
+     * Less than the low water mark is left in the queue of the phone.
+     */
+    public void onLowWater(Session session, int remainingMillis);
+
+    /**
+     * The call ended, or the phone did not resume it in time.
+     */
+    public void onEnd(Session session);
+}
@@ -0,0 +1,274 @@
+package sk.ksp.callcentrum.server;
+
+import java.nio.charset.Charset;
+
+import sk.ksp.callcentrum.core.CallProtocol;
+import sk.ksp.callcentrum.core.FrameCodec;
+
+/**
+ * One call, kept while the phone reconnects. The commands for the phone are encoded as text
+ * lines or frames, whichever the start line agreed on, and the last REPLAY_LIMIT of them are
+ * kept, so a resumed connection gets the commands it missed.
+ */
+public class Session {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int REPLAY_LIMIT = 1024;
+
+    private final GameServer server;
+    private final String token;
+    private final String druzinkaName;
+    private final String number;
+    private final boolean binary;
+    private Connection connection;
+    // When the connection was lost, for the resume window
+    private long detachedAt;
+    private boolean finished;
+    private boolean ended;
+    private Object attachment;
+
+    private final byte[][] log = new byte[REPLAY_LIMIT][];
+    // Number of commands sent since start
+    private int sent;
+    private final byte[] frame = new byte[16];
+
+    Session(GameServer server, String token, String druzinkaName, String number, boolean binary) {
+        this.server = server;
+        this.token = token;
+        this.druzinkaName = druzinkaName;
+        this.number = number;
+        this.binary = binary;
+    }
+
+    public String getDruzinkaName() {
+        return druzinkaName;
+    }
+
+    public String getNumber() {
+        return number;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns whether a phone is connected, commands are kept for it otherwise.
+     */
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public void play(String... words) {
+        words(FrameCodec.OP_PLAY, "play", -1, words);
+    }
+
+    public void append(String... words) {
+        words(FrameCodec.OP_APPEND, "append", -1, words);
+    }
+
+    public void playAfterCurrent(String... words) {
+        words(FrameCodec.OP_PLAY_AFTER_CURRENT, "play-after-current", -1, words);
+    }
+
+    public void interrupt(int priority, String... words) {
+        words(FrameCodec.OP_INTERRUPT, "interrupt " + priority, priority, words);
+    }
+
+    public void preload(String... words) {
+        words(FrameCodec.OP_PRELOAD, "preload", -1, words);
+    }
+
+    public void clear() {
+        command(FrameCodec.OP_CLEAR, "clear", -1);
+    }
+
+    public void image(String image) {
+        string(FrameCodec.OP_IMAGE, "image", image);
+    }
+
+    public void name(String name) {
+        string(FrameCodec.OP_NAME, "name", name);
+    }
+
+    /**
+     * Asks the phone for playing events.
+     */
+    public void progress(boolean on) {
+        command(FrameCodec.OP_PROGRESS, on ? "progress on" : "progress off", on ? 1 : 0);
+    }
+
+    public void lowWater(int millis) {
+        command(FrameCodec.OP_LOWWATER, "lowwater " + millis, millis);
+    }
+
+    /**
+     * Ends the call at once. Append the shutdown word instead to end it after the queue.
+     */
+    public void shutdown() {
+        finished = true;
+        command(FrameCodec.OP_SHUTDOWN, "shutdown", -1);
+    }
+
+    /**
+     * Runs the task on the server loop after the delay, unless the session ended by then.
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        server.schedule(this, task, delayMillis);
+    }
+
+    void pong(int seq) {
+        command(FrameCodec.OP_PONG, "pong " + seq, seq);
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    void attach(Connection connection) {
+        this.connection = connection;
+    }
+
+    void detach(long now) {
+        connection = null;
+        detachedAt = now;
+    }
+
+    long getDetachedAt() {
+        return detachedAt;
+    }
+
+    /**
+     * Whether the phone was told to end the call, it is not resumed after that.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    void setEnded() {
+        ended = true;
+    }
+
+    /**
+     * Whether the commands after the first received ones are still kept.
+     */
+    boolean canReplay(int received) {
+        return received >= 0 && received <= sent && sent - received <= REPLAY_LIMIT;
+    }
+
+    /**
+     * Sends the commands after the first received ones again.
+     */
+    void replay(int received) {
+        for (int i = received; i < sent; i++) {
+            connection.write(log[i % REPLAY_LIMIT]);
+        }
+    }
+
+    private void words(int opcode, String verb, int priority, String[] words) {
+        for (String word : words) {
+            if (CallProtocol.SHUTDOWN.equals(word)) {
+                finished = true;
+            }
+        }
+        if (!binary) {
+            StringBuilder line = new StringBuilder(verb);
+            for (String word : words) {
+                line.append(' ').append(word);
+            }
+            send(line.toString());
+            return;
+        }
+        WordIndex index = server.getWordIndex();
+        int size = 1 + (priority >= 0 ? 5 : 0) + 5 + 5 * words.length;
+        byte[] payload = size <= frame.length ? frame : new byte[size];
+        int n = 0;
+        payload[n++] = (byte) opcode;
+        if (priority >= 0) {
+            n = putVarint(payload, n, priority);
+        }
+        n = putVarint(payload, n, words.length);
+        for (String word : words) {
+            n = putVarint(payload, n, CallProtocol.SHUTDOWN.equals(word) ? 0 : index.find(word) + 1);
+        }
+        send(payload, n);
+    }
+
+    private void string(int opcode, String verb, String value) {
+        if (!binary) {
+            send(verb + " " + value);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        byte[] payload = new byte[1 + bytes.length];
+        payload[0] = (byte) opcode;
+        System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        send(payload, payload.length);
+    }
+
+    private void command(int opcode, String line, int value) {
+        if (!binary) {
+            send(line);
+            return;
+        }
+        int n = 0;
+        frame[n++] = (byte) opcode;
+        if (value >= 0) {
+            n = putVarint(frame, n, value);
+        }
+        send(frame, n);
+    }
+
+    private void send(String line) {
+        log(line.concat("\n").getBytes(UTF8));
+    }
+
+    // Prefixes the payload with its length
+    private void send(byte[] payload, int length) {
+        byte[] bytes = new byte[varintSize(length) + length];
+        int n = putVarint(bytes, 0, length);
+        System.arraycopy(payload, 0, bytes, n, length);
+        log(bytes);
+    }
+
+    private void log(byte[] bytes) {
+        log[sent++ % REPLAY_LIMIT] = bytes;
+        if (connection != null) {
+            connection.write(bytes);
+        }
+    }
+
+    private static int putVarint(byte[] buffer, int n, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer[n++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        buffer[n++] = (byte) value;
+        return n;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,79 @@
+package sk.ksp.callcentrum.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Word ids of the voice bundle of the app, needed for the binary protocol. Reads only the
+ * index of the bundle, its checksum is the one the phones send in the handshake. A bundle of
+ * version 1 has no CRC of the clips in the index and is read through, like VoiceBundle does.
+ */
+class WordIndex {
+
+    private static final int MAGIC = 0x56424e44;
+    private static final int VERSION = 2;
+    private static final int VERSION_NO_CRC = 1;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final int count;
+    private final long checksum;
+
+    public WordIndex(String bundle) throws IOException {
+        CRC32 crc = new CRC32();
+        DataInputStream index = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(bundle)), crc));
+        try {
+            if (index.readInt() != MAGIC) {
+                throw new IOException("Not a voice bundle: " + bundle);
+            }
+            int version = index.readShort();
+            if (version != VERSION && version != VERSION_NO_CRC) {
+                throw new IOException("Unknown voice bundle version " + version + ": " + bundle);
+            }
+            count = index.readInt();
+            if (version == VERSION) {
+                // CRC32 of the clips
+                index.readLong();
+            }
+            for (int i = 0; i < count; i++) {
+                String word = index.readUTF();
+                int variant = index.readUnsignedByte();
+                // offset and length
+                index.readInt();
+                index.readInt();
+                ids.put(word + "__" + variant, i);
+            }
+            if (version == VERSION_NO_CRC) {
+                byte[] buffer = new byte[8192];
+                while (index.read(buffer) >= 0) {
+                    // Checks the clips
+                }
+            }
+            checksum = crc.getValue();
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Returns the id of the word, or an id past the bundle the phone skips if it is unknown.
+     */
+    public int find(String word) {
+        Integer id = ids.get(word);
+        return id != null ? id : count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+}